@@ -15,10 +15,12 @@
  */
 package com.github.moduth.blockcanary;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-
 /**
  * {@link AbstractSampler} sampler defines sampler work flow.
+ * <p>
+ * Samplers do not schedule themselves, they are registered on a {@link SamplingScheduler}
+ * which calls {@link #doSample(long)} of every sampler on the same tick.
+ * </p>
  *
  * 采样器抽象接口， 实现类有 CpuSampler , StackSampler
  */
@@ -26,23 +28,9 @@ abstract class AbstractSampler {
 
     private static final int DEFAULT_SAMPLE_INTERVAL = 300;
 
-    protected AtomicBoolean mShouldSample = new AtomicBoolean(false);
     //采样间隔
     protected long mSampleInterval;
 
-    private Runnable mRunnable = new Runnable() {
-        @Override
-        public void run() {
-            doSample();
-
-            if (mShouldSample.get()) {
-                //发起循环，进行采样，每次间隔 mSampleInterval
-                HandlerThreadFactory.getTimerThreadHandler()
-                        .postDelayed(mRunnable, mSampleInterval);
-            }
-        }
-    };
-
     //用于设置 采样间隔的
     public AbstractSampler(long sampleInterval) {
         if (0 == sampleInterval) {
@@ -51,27 +39,28 @@ abstract class AbstractSampler {
         mSampleInterval = sampleInterval;
     }
 
-    public void start() {
-        if (mShouldSample.get()) {
-            return;
-        }
-        mShouldSample.set(true);
+    public long getSampleInterval() {
+        return mSampleInterval;
+    }
 
-        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(mRunnable);
-        //开始采样，为啥要延时呢？
-        //getSampleDelay是 卡顿阀值*0.8 。 延时的原因是因为避免非耗时方法也会进行采样操作而 浪费资源。 这里会添加一个
-        //延时消息，如果消息在没有达到 卡顿阀值*0.8  的时候就处理完了就会在 本类的 stop() 方法中将 mRunnable 给移除掉
-        HandlerThreadFactory.getTimerThreadHandler().postDelayed(mRunnable,
-                BlockCanaryInternals.getInstance().getSampleDelay());
+    /**
+     * Called on the timer thread before the first tick of every sampling session, to drop
+     * state left over from the previous one.
+     */
+    void onStart() {
     }
 
-    public void stop() {
-        if (!mShouldSample.get()) {
-            return;
-        }
-        mShouldSample.set(false);
-        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(mRunnable);
+    /**
+     * Called on the timer thread when a sampling session that has ticked at least once stops,
+     * after its last tick.
+     */
+    void onStop() {
     }
 
-    abstract void doSample();
+    /**
+     * Take one sample, called on the timer thread.
+     *
+     * @param time tick timestamp shared by all samplers of the tick (in millis)
+     */
+    abstract void doSample(long time);
 }
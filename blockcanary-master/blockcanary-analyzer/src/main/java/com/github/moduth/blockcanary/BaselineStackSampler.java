@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Always-on, low-rate capture of the main thread stack into a small ring, covering the part of
+ * a block before the regular samplers start at the sample delay.
+ * <p>
+ * It only captures while the monitored looper is dispatching and the regular samplers are not
+ * running yet, so its entries always come before the regular ones of the same message. The cost
+ * of every capture is measured; when the average cost exceeds the overhead budget (percent of
+ * one core) the interval is doubled, and it is halved back once the cost drops well below.
+ * While the looper is idle it parks instead of re-posting itself, and the looper wakes it when
+ * the next dispatch starts.
+ * </p>
+ *
+ * 常驻的低频堆栈采样，补上卡顿前 80% 时间里没有堆栈的问题，开销超出预算时自动降频
+ */
+final class BaselineStackSampler implements Runnable {
+
+    private static final int RING_SIZE = 32;
+    //最多降频到基础间隔的这么多倍
+    private static final int MAX_BACKOFF = 16;
+    //开销的指数移动平均，权重 1/8
+    private static final int COST_SMOOTHING = 8;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final Thread mThread;
+    private final LooperMonitor mMonitor;
+    private final SamplingScheduler mScheduler;
+    private final long mBaseInterval;
+    //开销预算，单位万分之一
+    private final long mBudgetPermyriad;
+    private final StackRing mStackRing = new StackRing(RING_SIZE);
+    //空闲时挂起，由 Looper 线程在下一条消息开始时唤醒
+    private final AtomicBoolean mParked = new AtomicBoolean(false);
+    private volatile boolean mRunning = false;
+
+    //以下字段只在 BlockCanary-loop 线程写
+    private volatile long mInterval;
+    private volatile long mCostNanos = 0;
+
+    /**
+     * @param thread          thread to capture
+     * @param monitor         monitor of the thread's looper
+     * @param scheduler       scheduler of the regular samplers
+     * @param interval        base capture interval (in millis)
+     * @param overheadPercent overhead budget in percent of one core
+     */
+    BaselineStackSampler(Thread thread, LooperMonitor monitor, SamplingScheduler scheduler,
+                         long interval, float overheadPercent) {
+        mThread = thread;
+        mMonitor = monitor;
+        mScheduler = scheduler;
+        mBaseInterval = Math.max(1, interval);
+        mInterval = mBaseInterval;
+        mBudgetPermyriad = Math.max(1, (long) (overheadPercent * 100));
+    }
+
+    void start() {
+        mRunning = true;
+        mParked.set(false);
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(this);
+        HandlerThreadFactory.getTimerThreadHandler().postDelayed(this, mInterval);
+    }
+
+    void stop() {
+        mRunning = false;
+        mParked.set(false);
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(this);
+    }
+
+    /**
+     * Wake the sampler if it is parked, called by the looper when a dispatch starts.
+     */
+    void onDispatchStart() {
+        //平时只是一次 volatile 读，挂起以后的第一条消息才 post
+        if (mParked.get() && mParked.compareAndSet(true, false) && mRunning) {
+            HandlerThreadFactory.getTimerThreadHandler().postDelayed(this, mInterval);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!mRunning) {
+            return;
+        }
+        int sequence = mMonitor.getDispatchSequence();
+        //偶数序号表示空闲，挂起
+        if ((sequence & 1) == 0) {
+            mParked.set(true);
+            //挂起的同时开始了一条消息，Looper 线程可能没看到挂起标记，自己接着采样
+            if (mMonitor.getDispatchSequence() == sequence || !mParked.compareAndSet(true, false)) {
+                return;
+            }
+        } else if (!(mMonitor.isDumping() && mScheduler.isSampling())) {
+            //这个 Looper 的常规采样开始以后交给 StackSampler
+            long begin = System.nanoTime();
+            mStackRing.add(System.currentTimeMillis(), mThread.getStackTrace());
+            long cost = System.nanoTime() - begin;
+            mCostNanos = mCostNanos == 0 ? cost
+                    : mCostNanos + (cost - mCostNanos) / COST_SMOOTHING;
+            adjustInterval();
+        }
+        HandlerThreadFactory.getTimerThreadHandler().postDelayed(this, mInterval);
+    }
+
+    ArrayList<String> getThreadStackEntries(long startTime, long endTime) {
+        return mStackRing.getEntries(startTime, endTime);
+    }
+
+    /**
+     * Current interval and measured overhead, like "interval:200ms cost:180us overhead:0.09%".
+     */
+    String getOverheadInfo() {
+        long interval = mInterval;
+        long permyriad = overheadPermyriad(mCostNanos, interval);
+        return "interval:" + interval + "ms cost:" + mCostNanos / 1000 + "us overhead:"
+                + permyriad / 100 + '.' + (permyriad % 100 < 10 ? "0" : "") + permyriad % 100
+                + '%';
+    }
+
+    private void adjustInterval() {
+        long permyriad = overheadPermyriad(mCostNanos, mInterval);
+        if (permyriad > mBudgetPermyriad) {
+            mInterval = Math.min(mBaseInterval * MAX_BACKOFF, mInterval * 2);
+        } else if (permyriad * 4 < mBudgetPermyriad && mInterval > mBaseInterval) {
+            mInterval = Math.max(mBaseInterval, mInterval / 2);
+        }
+    }
+
+    private static long overheadPermyriad(long costNanos, long intervalMillis) {
+        return costNanos * 10000 / (intervalMillis * NANOS_PER_MILLI);
+    }
+}
@@ -112,8 +112,8 @@ public class BlockCanaryContext implements BlockInterceptor {
      * Thread stack dump interval, use when block happens, BlockCanary will dump on main thread
      * stack according to current sample cycle.
      * <p>
-     * Because the implementation mechanism of Looper, real dump interval would be longer than
-     * the period specified here (especially when cpu is busier).
+     * Samples are taken at a fixed rate against absolute deadlines, but when the cpu is busy a
+     * sample may still run late, how late is reported as sample lag in the block info.
      * </p>
      *
      * 堆栈采样间隔 默认 1000 ms
@@ -124,6 +124,194 @@ public class BlockCanaryContext implements BlockInterceptor {
         return provideBlockThreshold();
     }
 
+    /**
+     * Number of busiest app threads, besides the main thread, whose cpu usage is reported with
+     * each block. Sampled from /proc/self/task while a block is being dumped.
+     *
+     * 每次卡顿报告除主线程外最忙的几个线程的 cpu 使用率，0 表示关闭线程级 cpu 采样
+     *
+     * @return thread count, 0 to disable per-thread cpu sampling
+     */
+    public int provideThreadCpuSampleCount() {
+        return 0;
+    }
+
+    /**
+     * Interval of the dense samples taken right after the sample delay, like 20ms, so that a
+     * block just above the threshold still gets many stacks. After
+     * {@link #provideBurstSampleCount()} samples the interval grows by
+     * {@link #provideSampleBackoffFactor()} each sample until it reaches
+     * {@link #provideDumpInterval()}.
+     *
+     * 卡顿初期密集采样的间隔，默认为 0 即不升级采样频率
+     *
+     * @return burst interval (in millis), 0 to sample at a flat interval
+     */
+    public int provideBurstSampleInterval() {
+        return 0;
+    }
+
+    /**
+     * Number of samples taken at {@link #provideBurstSampleInterval()} before backing off.
+     *
+     * 密集采样的次数
+     *
+     * @return burst sample count
+     */
+    public int provideBurstSampleCount() {
+        return 20;
+    }
+
+    /**
+     * Growth factor of the sample interval per sample after the burst, bounding the cost of
+     * multi-second freezes.
+     *
+     * 密集采样之后每次采样间隔的增长倍数
+     *
+     * @return backoff factor, at least 1
+     */
+    public float provideSampleBackoffFactor() {
+        return 2f;
+    }
+
+    /**
+     * Hard limit of a single message, when the main thread is still dispatching it after this
+     * long a provisional block record is written right away, so deadlocks and ANR kills leave a
+     * record behind. The record is replaced by the final one if the message completes.
+     * Values not above {@link #provideBlockThreshold()} are raised to just above it, so every
+     * message that got a provisional record is reported as a block when it completes.
+     *
+     * 卡死阈值，超过这个时间消息还没结束就先写一条临时记录，默认为 0 即不检测
+     *
+     * @return freeze threshold (in millis), 0 to disable
+     */
+    public int provideFreezeThreshold() {
+        return 0;
+    }
+
+    /**
+     * Whether to journal stack and cpu samples into a memory-mapped file while a block is being
+     * sampled, so that a block which ends with the process being killed is recovered and saved
+     * as a block log on the next launch.
+     *
+     * 是否把采样数据写入内存映射文件，进程在卡顿中被杀时下次启动可以恢复，默认为 false
+     *
+     * @return true if journal, false otherwise
+     */
+    public boolean journalInFlightSamples() {
+        return false;
+    }
+
+    /**
+     * Interval of the always-on main thread stack capture, which covers the part of a block
+     * before the regular sampling starts at 0.8 * threshold, like 200ms. It only captures while
+     * a message is being dispatched and backs off when its cost exceeds
+     * {@link #provideBaselineOverheadPercent()}.
+     *
+     * 常驻低频堆栈采样的间隔，默认为 0 即不开启
+     *
+     * @return baseline interval (in millis), 0 to disable
+     */
+    public int provideBaselineSampleInterval() {
+        return 0;
+    }
+
+    /**
+     * Overhead budget of the always-on stack capture, in percent of one core.
+     *
+     * 常驻采样的开销预算，占单核 cpu 的百分比
+     *
+     * @return overhead budget in percent
+     */
+    public float provideBaselineOverheadPercent() {
+        return 1f;
+    }
+
+    /**
+     * What to do with samples whose deadline passed while the sampler was delayed: run them back
+     * to back (only a few, older ones are always skipped) or skip them and keep the fixed rate.
+     *
+     * 采样被耽误时是否补采，默认跳过
+     *
+     * @return true to catch up, false to skip
+     */
+    public boolean catchUpMissedSamples() {
+        return false;
+    }
+
+    /**
+     * Cost cap of the lock holder search: when the main thread starts waiting on a monitor or a
+     * condition, the stacks of up to this many other threads are dumped once to find the
+     * threads running code of the same class, which likely hold the lock.
+     *
+     * 主线程等锁时最多抓取多少个其他线程的堆栈来找持锁线程，默认为 0 即不抓
+     *
+     * @return max threads dumped per wait, 0 to disable
+     */
+    public int provideLockOwnerThreadCount() {
+        return 0;
+    }
+
+    /**
+     * Whether to sample per-core utilization and frequency while a block is being dumped, to
+     * tell whether the main thread ran on saturated or down-clocked cores.
+     *
+     * 是否按核采样 cpu 使用率和频率，默认为 false
+     *
+     * @return true if sample, false otherwise
+     */
+    public boolean sampleCpuCores() {
+        return false;
+    }
+
+    /**
+     * Whether to sample java heap, native heap, rss and gc activity while a block is being
+     * dumped, to tell whether a gc storm or heap pressure caused it.
+     *
+     * 是否采样内存和 GC 信息，默认为 false
+     *
+     * @return true if sample, false otherwise
+     */
+    public boolean sampleMemory() {
+        return false;
+    }
+
+    /**
+     * Whether to sample process and main thread I/O accounting while a block is being dumped,
+     * to tell whether the block was spent reading or writing files.
+     *
+     * 是否采样 I/O 读写量，默认为 false
+     *
+     * @return true if sample, false otherwise
+     */
+    public boolean sampleIo() {
+        return false;
+    }
+
+    /**
+     * Whether to sample scheduler statistics and context switches of the main thread while a
+     * block is being dumped, to tell how long it waited runnable for a cpu versus slept.
+     *
+     * 是否采样主线程的调度延迟和上下文切换，默认为 false
+     *
+     * @return true if sample, false otherwise
+     */
+    public boolean sampleScheduling() {
+        return false;
+    }
+
+    /**
+     * Whether to sample system pressure (PSI stall time where the kernel supports it, and load
+     * average) while a block is being dumped, to tell whether the whole system was contended.
+     *
+     * 是否采样系统压力（PSI 和 loadavg），默认为 false
+     *
+     * @return true if sample, false otherwise
+     */
+    public boolean samplePressure() {
+        return false;
+    }
+
     /**
      * Path to save log, like "/blockcanary/", will save to sdcard if can.
      *
@@ -145,7 +333,7 @@ public class BlockCanaryContext implements BlockInterceptor {
     /**
      * Implement in your project, bundle files into a zip file.
      *
-     * @param src  files before compress
+     * @param src  text logs of the recorded blocks, one per block, deleted after this returns
      * @param dest files compressed
      * @return true if compression is successful
      */
@@ -219,4 +407,31 @@ public class BlockCanaryContext implements BlockInterceptor {
     public boolean stopWhenDebugging() {
         return true;
     }
+
+    /**
+     * Whether to arm samplers lazily. When enabled, the monitored looper only records when each
+     * dispatch starts, and a periodic check on BlockCanary's timer thread starts sampling once a
+     * dispatch has run past the sample delay, instead of posting and removing sampler callbacks
+     * around every message.
+     *
+     * 是否懒启动采样器，默认为 false
+     *
+     * @return true if arm lazily, false otherwise
+     */
+    public boolean armSamplersLazily() {
+        return false;
+    }
+
+    /**
+     * Interval to append the dispatch time percentiles of every monitored looper to
+     * latency.txt in the log directory. Each line covers the messages dispatched since the
+     * previous one, the histogram itself is always recorded.
+     *
+     * 每隔多久把各 Looper 的消息耗时分布追加到文件，默认 10 分钟，0 表示不保存
+     *
+     * @return persist interval in millis, 0 to disable
+     */
+    public long provideLatencyPersistInterval() {
+        return 10 * 60 * 1000L;
+    }
 }
\ No newline at end of file
@@ -19,34 +19,114 @@ import android.os.Environment;
 import android.os.Looper;
 
 import com.github.moduth.blockcanary.internal.BlockInfo;
+import com.github.moduth.blockcanary.internal.ThreadUtils;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public final class BlockCanaryInternals {
 
+    //卡死记录里最多列出的线程数
+    private static final int MAX_DESCRIBED_THREADS = 64;
+    private static final String JOURNAL_FILE = "blockcanary.journal";
+    private static final String PROVISIONAL_FILE = "blockcanary.provisional";
+
     LooperMonitor monitor;
     StackSampler stackSampler;
     CpuSampler cpuSampler;
+    //可选的采样器，没有开启时为 null
+    ThreadCpuSampler threadCpuSampler;
+    CpuCoreSampler cpuCoreSampler;
+    MemorySampler memorySampler;
+    IoSampler ioSampler;
+    SchedSampler schedSampler;
+    PressureSampler pressureSampler;
+    BaselineStackSampler baselineSampler;
 
     private static BlockCanaryInternals sInstance;
     private static BlockCanaryContext sContext;
 
+    //卡死临时记录，只在 BlockCanary-writer 线程访问
+    private long mProvisionalBlockId = -1;
+    private long mProvisionalStart;
+    private long mProvisionalElapsed;
+    //最近一条已经结束的卡顿消息的开始时间，晚到的卡死事件不再写临时记录
+    private long mLastBlockStart = -1;
+
     private List<BlockInterceptor> mInterceptorChain = new LinkedList<>();
+    //所有采样器共用一个调度器，随消息分发一起启动和停止
+    private final SamplingScheduler mScheduler;
+    //主线程以外被监控的 Looper
+    private final Map<Looper, LooperTarget> mLooperTargets = new HashMap<>();
+    //各 Looper 耗时分布上次保存时的计数，只在 BlockCanary-writer 线程访问
+    private final Map<LatencyHistogram, long[]> mPersistedLatency = new HashMap<>();
+
+    private final Runnable mLatencyPersister = new Runnable() {
+        @Override
+        public void run() {
+            persistLatency();
+            HandlerThreadFactory.getWriteLogThreadHandler()
+                    .postDelayed(this, sContext.provideLatencyPersistInterval());
+        }
+    };
 
     public BlockCanaryInternals() {
 
+        mScheduler = new SamplingScheduler(sContext.catchUpMissedSamples(),
+                sContext.provideBurstSampleInterval(),
+                sContext.provideBurstSampleCount(),
+                sContext.provideSampleBackoffFactor());
+
         //创建一个 堆栈采样器 ， 并设置采样间隔
         stackSampler = new StackSampler(
                 Looper.getMainLooper().getThread(),
-                sContext.provideDumpInterval());
+                0,
+                sContext.provideDumpInterval(),
+                sContext.provideLockOwnerThreadCount());
 
         //创建一个 Cpu采样器
         cpuSampler = new CpuSampler(sContext.provideDumpInterval());
 
+        mScheduler.register(stackSampler);
+        mScheduler.register(cpuSampler);
+
+        //主线程的 tid 就是进程 pid
+        if (sContext.provideThreadCpuSampleCount() > 0) {
+            threadCpuSampler = new ThreadCpuSampler(android.os.Process.myPid(),
+                    sContext.provideThreadCpuSampleCount(), sContext.provideDumpInterval());
+            mScheduler.register(threadCpuSampler);
+        }
+
+        if (sContext.sampleCpuCores()) {
+            cpuCoreSampler = new CpuCoreSampler(sContext.provideDumpInterval());
+            mScheduler.register(cpuCoreSampler);
+        }
+
+        if (sContext.sampleMemory()) {
+            memorySampler = new MemorySampler(sContext.provideDumpInterval());
+            mScheduler.register(memorySampler);
+        }
+
+        if (sContext.sampleIo()) {
+            ioSampler = new IoSampler(android.os.Process.myPid(), sContext.provideDumpInterval());
+            mScheduler.register(ioSampler);
+        }
+
+        if (sContext.sampleScheduling()) {
+            schedSampler = new SchedSampler(android.os.Process.myPid(),
+                    sContext.provideDumpInterval());
+            mScheduler.register(schedSampler);
+        }
+
+        if (sContext.samplePressure()) {
+            pressureSampler = new PressureSampler(sContext.provideDumpInterval());
+            mScheduler.register(pressureSampler);
+        }
+
         //创建一个 LooperMonitor ，并为 LooperMonitor 创建一个 BlockListener 就是发生卡顿以后该怎么办
         setMonitor(new LooperMonitor(new LooperMonitor.BlockListener() {
 
@@ -54,38 +134,90 @@ public final class BlockCanaryInternals {
             public void onBlockEvent(long realTimeStart,
                                      long realTimeEnd,
                                      long threadTimeStart,
-                                     long threadTimeEnd) {
+                                     long threadTimeEnd,
+                                     MessageSource source) {
                 // Get recent thread-stack entries and cpu usage
                 // 通过stackSampler 获取 realTimeStart 到 realTimeEnd 这段时间的堆栈情况
-                ArrayList<String> threadStackEntries = stackSampler
-                        .getThreadStackEntries(realTimeStart, realTimeEnd);
-                if (!threadStackEntries.isEmpty()) {
+                ArrayList<String> threadStackEntries =
+                        getThreadStackEntries(realTimeStart, realTimeEnd);
+                mLastBlockStart = realTimeStart;
+                //这条消息之前写过卡死临时记录，这次是定稿
+                boolean finalizesFreeze = mProvisionalBlockId >= 0
+                        && mProvisionalStart == realTimeStart;
+                if (threadStackEntries.isEmpty()) {
+                    //没有采到堆栈不写卡顿记录，临时记录也不再需要
+                    if (finalizesFreeze) {
+                        LogWriter.delete(mProvisionalBlockId);
+                        mProvisionalBlockId = -1;
+                    }
+                } else {
                     //创建一个 BlockInfo
-                    BlockInfo blockInfo = BlockInfo.newInstance()
-                            //设置真实起始结束时间 和线程的 起始结束时间
-                            .setMainThreadTimeCost(realTimeStart, realTimeEnd, threadTimeStart, threadTimeEnd)
-                            //设置cup是否繁忙
-                            .setCpuBusyFlag(cpuSampler.isCpuBusy(realTimeStart, realTimeEnd))
-                            //设置CUP使用率
-                            .setRecentCpuRate(cpuSampler.getCpuRateInfo())
+                    BlockInfo blockInfo = collectBlockInfo(realTimeStart, realTimeEnd,
+                            threadTimeStart, threadTimeEnd, true)
+                            .setFreezeInfo(finalizesFreeze
+                                    ? "final, provisional record written after "
+                                    + mProvisionalElapsed + "ms" : null)
+                            //消息来源和它的累计耗时
+                            .setHandlerInfo(source == null ? null : source.toString())
                             //设置堆栈信息
                             .setThreadStackEntries(threadStackEntries)
                             //用于构建多个 StringBuilder ，并设置信息
                             .flushString();
 
                     //日志写入到文件中
-                    LogWriter.save(blockInfo.toString());
-
-                    //回调各个拦截器的 onBlock 方法并传入生成的 BlockInfo
-                    //包括会发送推送的 DisplayService
-                    if (mInterceptorChain.size() != 0) {
-                        for (BlockInterceptor interceptor : mInterceptorChain) {
-                            interceptor.onBlock(getContext().provideContext(), blockInfo);
-                        }
+                    LogWriter.save(blockInfo);
+                    if (finalizesFreeze) {
+                        LogWriter.delete(mProvisionalBlockId);
+                        mProvisionalBlockId = -1;
                     }
+
+                    notifyInterceptors(blockInfo);
                 }
             }
-        }, getContext().provideBlockThreshold(), getContext().stopWhenDebugging()));
+
+            @Override
+            public void onFreezeEvent(long realTimeStart, long realTimeNow,
+                                      MessageSource source) {
+                //检查线程 post 之前消息已经结束，它的卡顿事件先处理过了
+                if (realTimeStart == mLastBlockStart) {
+                    return;
+                }
+                //采样数据加上主线程当前的堆栈，线程时间拿不到，记为 0
+                ArrayList<String> threadStackEntries =
+                        getThreadStackEntries(realTimeStart, realTimeNow);
+                threadStackEntries.add(StackRing.format(realTimeNow,
+                        Looper.getMainLooper().getThread().getStackTrace()));
+                BlockInfo blockInfo = collectBlockInfo(realTimeStart, realTimeNow, 0, 0, true)
+                        .setFreezeInfo("provisional, threads " + describeThreadStates())
+                        .setHandlerInfo(source == null ? null : source.toString())
+                        .setThreadStackEntries(threadStackEntries)
+                        .flushString();
+
+                //上一条临时记录没有定稿，说明那次卡死一直没有结束，保留它
+                mProvisionalBlockId = LogWriter.save(blockInfo);
+                mProvisionalStart = realTimeStart;
+                mProvisionalElapsed = realTimeNow - realTimeStart;
+                //进程死在这次卡死里时，下次启动由日志恢复出的记录取代临时记录
+                if (sContext.journalInFlightSamples() && mProvisionalBlockId >= 0) {
+                    File file = new File(getContext().provideContext().getFilesDir(),
+                            PROVISIONAL_FILE);
+                    BlockJournal.saveProvisional(file, realTimeStart, mProvisionalBlockId);
+                }
+            }
+        }, mScheduler, getContext().provideBlockThreshold(), getContext().stopWhenDebugging(),
+                getContext().armSamplersLazily(), getContext().provideFreezeThreshold()));
+        stackSampler.setMonitor(monitor);
+
+        if (sContext.provideBaselineSampleInterval() > 0) {
+            baselineSampler = new BaselineStackSampler(Looper.getMainLooper().getThread(),
+                    monitor, mScheduler, sContext.provideBaselineSampleInterval(),
+                    sContext.provideBaselineOverheadPercent());
+            monitor.setBaselineSampler(baselineSampler);
+        }
+
+        if (sContext.journalInFlightSamples()) {
+            openJournal();
+        }
 
         //删除两天前的过时文件
         LogWriter.cleanObsolete();
@@ -124,14 +256,227 @@ public final class BlockCanaryInternals {
         mInterceptorChain.add(blockInterceptor);
     }
 
-    private void setMonitor(LooperMonitor looperPrinter) {
-        monitor = looperPrinter;
+    /**
+     * Create a monitor for another looper, like the one of a {@link android.os.HandlerThread}.
+     * It has its own block threshold and stack sampler and shares the scheduler and the process
+     * wide samplers with the main looper monitor. The caller installs it with
+     * {@link MultiplexPrinter#add(Looper, android.util.Printer)}.
+     *
+     * @param looper          looper to monitor
+     * @param tag             tag written into the block records of this looper
+     * @param thresholdMillis block threshold of this looper
+     * @return monitor of the looper, the existing one if the looper is already monitored
+     */
+    synchronized LooperMonitor addLooperMonitor(Looper looper, String tag, long thresholdMillis) {
+        LooperTarget target = mLooperTargets.get(looper);
+        if (target == null) {
+            target = new LooperTarget(looper.getThread(), tag, thresholdMillis);
+            mLooperTargets.put(looper, target);
+        }
+        return target.mMonitor;
+    }
+
+    /**
+     * Drop the monitor created by {@link #addLooperMonitor(Looper, String, long)}, the caller
+     * uninstalls it first.
+     */
+    synchronized void removeLooperMonitor(Looper looper) {
+        LooperTarget target = mLooperTargets.remove(looper);
+        if (target != null) {
+            target.mMonitor.release();
+            target.mMonitor.stopDump();
+            mScheduler.unregister(target.mStackSampler);
+        }
     }
 
-    //采样延时， 为啥要延时呀？？
-    //可以看到这里延时的时间是 卡顿阀值*0.8 。 延时的原因是因为避免非耗时方法也会进行采样操作而 浪费资源。
-    long getSampleDelay() {
-        return (long) (BlockCanaryInternals.getContext().provideBlockThreshold() * 0.8f);
+    /**
+     * Dispatch time histogram of the main looper or of a looper added by
+     * {@link #addLooperMonitor(Looper, String, long)}.
+     *
+     * @return the histogram, or null if the looper is not monitored
+     */
+    synchronized LatencyHistogram getLatencyHistogram(Looper looper) {
+        if (looper == Looper.getMainLooper()) {
+            return monitor.getLatencyHistogram();
+        }
+        LooperTarget target = mLooperTargets.get(looper);
+        return target == null ? null : target.mMonitor.getLatencyHistogram();
+    }
+
+    /**
+     * Message sources of the main looper or of a looper added by
+     * {@link #addLooperMonitor(Looper, String, long)}, the one with the most total time first.
+     *
+     * @return copies of the sources, or null if the looper is not monitored
+     */
+    synchronized List<MessageSource> getMessageSources(Looper looper) {
+        if (looper == Looper.getMainLooper()) {
+            return monitor.getMessageSources();
+        }
+        LooperTarget target = mLooperTargets.get(looper);
+        return target == null ? null : target.mMonitor.getMessageSources();
+    }
+
+    void startLatencyPersistence() {
+        if (sContext.provideLatencyPersistInterval() > 0) {
+            HandlerThreadFactory.getWriteLogThreadHandler().removeCallbacks(mLatencyPersister);
+            HandlerThreadFactory.getWriteLogThreadHandler()
+                    .postDelayed(mLatencyPersister, sContext.provideLatencyPersistInterval());
+        }
+    }
+
+    void stopLatencyPersistence() {
+        if (sContext.provideLatencyPersistInterval() > 0) {
+            HandlerThreadFactory.getWriteLogThreadHandler().removeCallbacks(mLatencyPersister);
+            //把最后一段也保存下来
+            HandlerThreadFactory.getWriteLogThreadHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    persistLatency();
+                }
+            });
+        }
+    }
+
+    /**
+     * Append the percentiles of the messages dispatched since the last call, one line per
+     * looper, like "looper:main count:5230 p50:1ms p90:4ms p99:23ms max:180ms".
+     */
+    private void persistLatency() {
+        Map<LatencyHistogram, String> histograms = new HashMap<>();
+        histograms.put(monitor.getLatencyHistogram(), "main");
+        synchronized (this) {
+            for (LooperTarget target : mLooperTargets.values()) {
+                histograms.put(target.mMonitor.getLatencyHistogram(), target.mTag);
+            }
+        }
+        for (Map.Entry<LatencyHistogram, String> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getKey();
+            long[] counts = histogram.copyCounts();
+            LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot(counts.clone(),
+                    mPersistedLatency.get(histogram), histogram.getMax());
+            mPersistedLatency.put(histogram, counts);
+            if (snapshot.count > 0) {
+                LogWriter.saveLatency("looper:" + entry.getValue() + " " + snapshot);
+            }
+        }
+        //去掉已经不再监控的 Looper
+        mPersistedLatency.keySet().retainAll(histograms.keySet());
+    }
+
+    /**
+     * Recover the dispatch a previous process died in, then start journaling for this one.
+     */
+    private void openJournal() {
+        HandlerThreadFactory.getWriteLogThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                File dir = getContext().provideContext().getFilesDir();
+                File file = new File(dir, JOURNAL_FILE);
+                BlockInfo recovered = BlockJournal.recover(file);
+                long provisionalId = BlockJournal.takeProvisional(
+                        new File(dir, PROVISIONAL_FILE), recovered);
+                if (recovered != null) {
+                    LogWriter.save(recovered);
+                    //同一次分发写过卡死临时记录，恢复出的记录包含全部采样，取代它
+                    if (provisionalId >= 0) {
+                        LogWriter.delete(provisionalId);
+                    }
+                }
+                BlockJournal journal = BlockJournal.open(file, monitor);
+                if (journal != null) {
+                    stackSampler.setJournal(journal);
+                    cpuSampler.setJournal(journal);
+                }
+            }
+        });
+    }
+
+    private ArrayList<String> getThreadStackEntries(long realTimeStart, long realTimeEnd) {
+        ArrayList<String> threadStackEntries = stackSampler
+                .getThreadStackEntries(realTimeStart, realTimeEnd);
+        //常驻采样的堆栈都在常规采样开始之前，放在前面
+        if (baselineSampler != null) {
+            threadStackEntries.addAll(0, baselineSampler
+                    .getThreadStackEntries(realTimeStart, realTimeEnd));
+        }
+        return threadStackEntries;
+    }
+
+    private void notifyInterceptors(BlockInfo blockInfo) {
+        //回调各个拦截器的 onBlock 方法并传入生成的 BlockInfo
+        //包括会发送推送的 DisplayService
+        if (mInterceptorChain.size() != 0) {
+            for (BlockInterceptor interceptor : mInterceptorChain) {
+                interceptor.onBlock(getContext().provideContext(), blockInfo);
+            }
+        }
+    }
+
+    /**
+     * Collect the sampled data of the given window into a new {@link BlockInfo}, stacks are set
+     * by the caller.
+     *
+     * @param mainLooper whether the window is a dispatch of the main looper, the samplers of
+     *                   the main thread are skipped otherwise
+     */
+    private BlockInfo collectBlockInfo(long realTimeStart,
+                                       long realTimeEnd,
+                                       long threadTimeStart,
+                                       long threadTimeEnd,
+                                       boolean mainLooper) {
+        int cpuContention = cpuSampler.getCpuContention(realTimeStart, realTimeEnd);
+        return BlockInfo.newInstance()
+                //设置真实起始结束时间 和线程的 起始结束时间
+                .setMainThreadTimeCost(realTimeStart, realTimeEnd, threadTimeStart, threadTimeEnd)
+                //设置cup是否繁忙
+                .setCpuBusyFlag(cpuContention >= CpuSampler.BUSY_CONTENTION)
+                .setCpuContention(cpuContention)
+                //设置CUP使用率
+                .setRecentCpuRate(cpuSampler.getCpuRateInfo(realTimeStart, realTimeEnd))
+                .setThreadCpuInfo(threadCpuSampler == null ? null
+                        : threadCpuSampler.getThreadCpuInfo(realTimeStart, realTimeEnd))
+                .setCpuCoreInfo(cpuCoreSampler == null ? null
+                        : cpuCoreSampler.getCoreInfo(realTimeStart, realTimeEnd))
+                .setMemoryInfo(memorySampler == null ? null
+                        : memorySampler.getMemoryInfo(realTimeStart, realTimeEnd))
+                .setIoInfo(ioSampler == null ? null
+                        : ioSampler.getIoInfo(realTimeStart, realTimeEnd))
+                .setSchedInfo(schedSampler == null || !mainLooper ? null
+                        : schedSampler.getSchedInfo(realTimeStart, realTimeEnd,
+                        threadTimeEnd - threadTimeStart))
+                .setPressureInfo(pressureSampler == null ? null
+                        : pressureSampler.getPressureInfo(realTimeStart, realTimeEnd))
+                .setSampleLagInfo(mScheduler.getSampleLagInfo(realTimeStart, realTimeEnd))
+                .setBaselineInfo(baselineSampler == null ? null
+                        : baselineSampler.getOverheadInfo());
+    }
+
+    /**
+     * States of all live threads, like "main:BLOCKED RenderThread:RUNNABLE".
+     */
+    private static String describeThreadStates() {
+        StringBuilder sb = new StringBuilder();
+        for (Thread thread : ThreadUtils.getAllThreads(MAX_DESCRIBED_THREADS)) {
+            sb.append(thread.getName()).append(':').append(thread.getState()).append(' ');
+        }
+        return sb.toString().trim();
+    }
+
+    void startBaselineSampling() {
+        if (baselineSampler != null) {
+            baselineSampler.start();
+        }
+    }
+
+    void stopBaselineSampling() {
+        if (baselineSampler != null) {
+            baselineSampler.stop();
+        }
+    }
+
+    private void setMonitor(LooperMonitor looperPrinter) {
+        monitor = looperPrinter;
     }
 
     /**
@@ -159,25 +504,56 @@ public final class BlockCanaryInternals {
         return directory;
     }
 
+    /**
+     * @return segment files of the {@link BlockStore}, oldest first
+     */
     public static File[] getLogFiles() {
-        File f = detectedBlockDirectory();
-        if (f.exists() && f.isDirectory()) {
-            return f.listFiles(new BlockLogFileFilter());
-        }
-        return null;
+        return LogWriter.getSegments();
     }
 
-    private static class BlockLogFileFilter implements FilenameFilter {
+    /**
+     * Stack sampler and monitor of a looper other than the main one.
+     */
+    private final class LooperTarget implements LooperMonitor.BlockListener {
 
-        private String TYPE = ".log";
+        private final String mTag;
+        private final StackSampler mStackSampler;
+        private final LooperMonitor mMonitor;
 
-        BlockLogFileFilter() {
+        LooperTarget(Thread thread, String tag, long thresholdMillis) {
+            mTag = tag;
+            mStackSampler = new StackSampler(thread, 0, sContext.provideDumpInterval(),
+                    sContext.provideLockOwnerThreadCount());
+            //不懒启动，也不检测卡死
+            mMonitor = new LooperMonitor(this, mScheduler, thresholdMillis, sContext.stopWhenDebugging(),
+                    false, 0);
+            mStackSampler.setMonitor(mMonitor);
+            mScheduler.register(mStackSampler);
+        }
 
+        @Override
+        public void onBlockEvent(long realTimeStart,
+                                 long realTimeEnd,
+                                 long threadTimeStart,
+                                 long threadTimeEnd,
+                                 MessageSource source) {
+            ArrayList<String> threadStackEntries =
+                    mStackSampler.getThreadStackEntries(realTimeStart, realTimeEnd);
+            if (!threadStackEntries.isEmpty()) {
+                BlockInfo blockInfo = collectBlockInfo(realTimeStart, realTimeEnd,
+                        threadTimeStart, threadTimeEnd, false)
+                        .setLooperTag(mTag)
+                        .setHandlerInfo(source == null ? null : source.toString())
+                        .setThreadStackEntries(threadStackEntries)
+                        .flushString();
+                LogWriter.save(blockInfo);
+                notifyInterceptors(blockInfo);
+            }
         }
 
         @Override
-        public boolean accept(File dir, String filename) {
-            return filename.endsWith(TYPE);
+        public void onFreezeEvent(long realTimeStart, long realTimeNow, MessageSource source) {
+            //没有开启卡死检测，不会回调
         }
     }
 }
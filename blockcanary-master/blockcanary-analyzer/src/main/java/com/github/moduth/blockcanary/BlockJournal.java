@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import android.util.Log;
+
+import com.github.moduth.blockcanary.internal.BlockInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Memory-mapped journal of the dispatch being sampled.
+ * <p>
+ * Samplers append compact binary records to a mapped file while a dispatch is being sampled,
+ * one session per dispatch: a session begins with the first record after
+ * {@link LooperMonitor#getDispatchSequence()} moved to a new dispatch and ends as soon as the
+ * sequence moves on or sampling stops, even if the scheduler keeps ticking for another looper.
+ * Pages of a shared mapping belong to the kernel page cache, so they reach the file even if the
+ * process is killed. A session that has no end record on the next launch means the process
+ * died during the dispatch, and {@link #recover(File)} turns it back into a block report, which
+ * supersedes the provisional freeze record noted by {@link #saveProvisional(File, long, long)}
+ * for the same dispatch.
+ * </p>
+ * <p>
+ * The journal only keeps the latest session: it is rewritten from the start every time a
+ * session begins, and records that do not fit are dropped. Layout is a magic number followed by
+ * records, each one a type byte and its payload, terminated by a zero byte:
+ * </p>
+ * <pre>
+ * SESSION dispatchStart:long
+ * FRAME   id:short length:short utf8:byte[length]
+ * STACK   time:long count:short frameId:short[count]
+ * CPU     time:long cpu:byte app:byte
+ * END     time:long
+ * </pre>
+ *
+ * 崩溃安全的采样日志，进程在卡顿中被杀时下次启动可以恢复出这次卡顿
+ */
+final class BlockJournal {
+
+    private static final String TAG = "BlockJournal";
+    private static final int MAGIC = 0x42434a31;
+    private static final int SIZE = 256 * 1024;
+    private static final int MAX_FRAME_BYTES = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte TYPE_NONE = 0;
+    private static final byte TYPE_SESSION = 1;
+    private static final byte TYPE_FRAME = 2;
+    private static final byte TYPE_STACK = 3;
+    private static final byte TYPE_CPU = 4;
+    private static final byte TYPE_END = 5;
+
+    private final MappedByteBuffer mBuffer;
+    private final LooperMonitor mMonitor;
+    //本次会话里已经写过的栈帧
+    private final HashMap<StackTraceElement, Integer> mFrameIds = new HashMap<>();
+    private boolean mInSession = false;
+    //当前会话对应的分发序号
+    private int mSessionSequence;
+    //写满了就放弃本次会话剩下的数据
+    private boolean mFull = false;
+
+    private BlockJournal(MappedByteBuffer buffer, LooperMonitor monitor) {
+        mBuffer = buffer;
+        mMonitor = monitor;
+    }
+
+    /**
+     * Map the journal file, discarding what it contains, call {@link #recover(File)} first.
+     *
+     * @return journal, or null if the file can not be mapped
+     */
+    static BlockJournal open(File file, LooperMonitor monitor) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(SIZE);
+            //映射建立以后关掉文件也不影响映射
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SIZE);
+            buffer.putInt(0, MAGIC);
+            buffer.put(4, TYPE_NONE);
+            return new BlockJournal(buffer, monitor);
+        } catch (IOException e) {
+            Log.w(TAG, "open journal failed", e);
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    synchronized void appendStack(long time, StackTraceElement[] stack) {
+        if (!syncSession(time)) {
+            return;
+        }
+        int count = Math.min(stack.length, Short.MAX_VALUE);
+        short[] ids = new short[count];
+        for (int i = 0; i < count; i++) {
+            Integer id = mFrameIds.get(stack[i]);
+            if (id == null) {
+                id = mFrameIds.size();
+                byte[] bytes = stack[i].toString().getBytes(UTF_8);
+                int length = Math.min(bytes.length, MAX_FRAME_BYTES);
+                if (id > Short.MAX_VALUE || !reserve(5 + length)) {
+                    return;
+                }
+                mBuffer.put(TYPE_FRAME).putShort(id.shortValue()).putShort((short) length)
+                        .put(bytes, 0, length);
+                terminate();
+                mFrameIds.put(stack[i], id);
+            }
+            ids[i] = id.shortValue();
+        }
+        if (!reserve(11 + 2 * count)) {
+            return;
+        }
+        mBuffer.put(TYPE_STACK).putLong(time).putShort((short) count);
+        for (short id : ids) {
+            mBuffer.putShort(id);
+        }
+        terminate();
+    }
+
+    synchronized void appendCpu(long time, int cpu, int app) {
+        if (!syncSession(time) || !reserve(11)) {
+            return;
+        }
+        mBuffer.put(TYPE_CPU).putLong(time).put((byte) cpu).put((byte) app);
+        terminate();
+    }
+
+    /**
+     * Mark the session of the current dispatch as completed, its dispatch is then never
+     * recovered. Called when sampling stops, a session is also ended by the first record after
+     * its dispatch.
+     */
+    synchronized void endSession(long time) {
+        if (!mInSession) {
+            return;
+        }
+        mInSession = false;
+        //END 必须写得下，写不下就把会话整个丢掉
+        if (mBuffer.remaining() >= 10) {
+            mBuffer.put(TYPE_END).putLong(time);
+            terminate();
+        } else {
+            mBuffer.put(4, TYPE_NONE);
+        }
+    }
+
+    /**
+     * Read a journal left by a previous process.
+     *
+     * @return block info of the dispatch that was in flight when the process died, or null
+     */
+    static BlockInfo recover(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            byte[] content = new byte[(int) Math.min(raf.length(), SIZE)];
+            raf.readFully(content);
+            return parse(ByteBuffer.wrap(content));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "recover journal failed", e);
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Note the provisional freeze record written for a dispatch, so the block recovered from
+     * the journal can supersede it if the process dies before the dispatch ends.
+     */
+    static void saveProvisional(File file, long dispatchStart, long blockId) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.writeLong(dispatchStart);
+            raf.writeLong(blockId);
+        } catch (IOException e) {
+            Log.w(TAG, "save provisional failed", e);
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Read and delete the note written by {@link #saveProvisional(File, long, long)}.
+     *
+     * @param recovered block returned by {@link #recover(File)}, may be null
+     * @return id of the provisional record of the recovered dispatch, or -1
+     */
+    static long takeProvisional(File file, BlockInfo recovered) {
+        if (!file.exists()) {
+            return -1;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            long dispatchStart = raf.readLong();
+            long blockId = raf.readLong();
+            //恢复出的记录的开始时间就是分发开始时间
+            return recovered != null
+                    && BlockInfo.TIME_FORMATTER.format(dispatchStart).equals(recovered.timeStart)
+                    ? blockId : -1;
+        } catch (IOException e) {
+            Log.w(TAG, "read provisional failed", e);
+            return -1;
+        } finally {
+            closeQuietly(raf);
+            file.delete();
+        }
+    }
+
+    private static BlockInfo parse(ByteBuffer buffer) {
+        if (buffer.remaining() < 5 || buffer.getInt() != MAGIC) {
+            return null;
+        }
+        long dispatchStart = -1;
+        long lastTime = -1;
+        ArrayList<String> frames = new ArrayList<>();
+        ArrayList<String> stackEntries = new ArrayList<>();
+        StringBuilder cpuRate = new StringBuilder();
+        try {
+            byte type;
+            while (buffer.hasRemaining() && (type = buffer.get()) != TYPE_NONE) {
+                switch (type) {
+                    case TYPE_SESSION:
+                        dispatchStart = buffer.getLong();
+                        lastTime = dispatchStart;
+                        break;
+                    case TYPE_FRAME:
+                        int id = buffer.getShort();
+                        byte[] bytes = new byte[buffer.getShort()];
+                        buffer.get(bytes);
+                        while (frames.size() <= id) {
+                            frames.add("");
+                        }
+                        frames.set(id, new String(bytes, UTF_8));
+                        break;
+                    case TYPE_STACK:
+                        lastTime = buffer.getLong();
+                        //没有分发开始时间时从第一个堆栈算起
+                        if (dispatchStart == 0) {
+                            dispatchStart = lastTime;
+                        }
+                        StringBuilder sb = new StringBuilder()
+                                .append(BlockInfo.TIME_FORMATTER.format(lastTime))
+                                .append(BlockInfo.SEPARATOR)
+                                .append(BlockInfo.SEPARATOR);
+                        for (int i = buffer.getShort(); i > 0; i--) {
+                            int frameId = buffer.getShort();
+                            sb.append(frameId < frames.size() ? frames.get(frameId) : "?")
+                                    .append(BlockInfo.SEPARATOR);
+                        }
+                        stackEntries.add(sb.toString());
+                        break;
+                    case TYPE_CPU:
+                        long time = buffer.getLong();
+                        cpuRate.append(BlockInfo.TIME_FORMATTER.format(time))
+                                .append(" cpu:").append(buffer.get()).append("% ")
+                                .append("app:").append(buffer.get()).append('%')
+                                .append(BlockInfo.SEPARATOR);
+                        break;
+                    case TYPE_END:
+                        //会话正常结束了，不需要恢复
+                        return null;
+                    default:
+                        //格式不对，后面的数据不可信
+                        buffer.position(buffer.limit());
+                        break;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            //最后一条记录没写完，前面的照样可用
+        }
+        if (dispatchStart < 0 || stackEntries.isEmpty()) {
+            return null;
+        }
+        return BlockInfo.newInstance()
+                .setMainThreadTimeCost(dispatchStart, lastTime, 0, 0)
+                .setRecentCpuRate(cpuRate.toString())
+                .setFreezeInfo("recovered, process died during this dispatch")
+                .setThreadStackEntries(stackEntries)
+                .flushString();
+    }
+
+    /**
+     * End the session if its dispatch is over and begin one if another dispatch is running.
+     *
+     * @return whether records can be appended to the session of the running dispatch
+     */
+    private boolean syncSession(long time) {
+        int sequence = mMonitor.getDispatchSequence();
+        if (mInSession && sequence == mSessionSequence) {
+            return !mFull;
+        }
+        //上一个会话的消息已经分发完了
+        endSession(time);
+        //序号为偶数表示没有在分发消息
+        if ((sequence & 1) == 0) {
+            return false;
+        }
+        mFrameIds.clear();
+        mFull = false;
+        mInSession = true;
+        mSessionSequence = sequence;
+        mBuffer.position(4);
+        if (reserve(9)) {
+            mBuffer.put(TYPE_SESSION).putLong(mMonitor.getDispatchStartMillis());
+            terminate();
+        }
+        return !mFull;
+    }
+
+    private boolean reserve(int size) {
+        //再留一个字节给结束标记
+        if (mBuffer.remaining() < size + 1) {
+            mFull = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void terminate() {
+        mBuffer.put(mBuffer.position(), TYPE_NONE);
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close journal failed", e);
+            }
+        }
+    }
+}
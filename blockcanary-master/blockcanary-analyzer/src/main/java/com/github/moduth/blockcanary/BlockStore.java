@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import android.util.Log;
+
+import com.github.moduth.blockcanary.internal.BlockInfo;
+import com.github.moduth.blockcanary.internal.BlockLogReader;
+import com.github.moduth.blockcanary.internal.BlockLogWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only store of blocks in segments named segment-&lt;sequence&gt;.blk, each a block log of
+ * {@link BlockLogWriter}. A segment is sealed once it grows past {@link #SEGMENT_SIZE} and
+ * the next block goes to a new one.
+ * <p>
+ * A block is addressed by its id, the segment sequence in the high 32 bits and the offset of
+ * its record in the segment in the low ones, so it is found through the record offset index of
+ * {@link BlockLogReader}. Deleting a block appends a tombstone, retention deletes whole
+ * segments. The directory is listed only when the store opens, text logs and single block
+ * binary logs found then are imported in the order they were written, and deleted once
+ * imported. A log that fails to import is kept to retry next time, until it is older than
+ * {@link LogWriter#OBSOLETE_DURATION}.
+ * </p>
+ * Not thread safe, {@link LogWriter} guards it.
+ */
+public final class BlockStore {
+
+    private static final String TAG = "BlockStore";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = LogWriter.BINARY_LOG_SUFFIX;
+    private static final String TEXT_LOG_SUFFIX = ".log";
+    //写满这么多字节就换下一个段，记录不会跨段
+    static final long SEGMENT_SIZE = 256 * 1024;
+    //段数上限，超过就删除最老的段
+    static final int MAX_SEGMENTS = 16;
+
+    private final File mDirectory;
+    //按序号从小到大，最后一个可能是正在写的段
+    private final List<Integer> mSegments = new ArrayList<>();
+    private BlockLogWriter mWriter;
+    private int mWriterSequence = -1;
+    //序号只增不减，全部删除以后旧的卡顿 id 也不会指到新段里
+    private int mNextSequence = 0;
+
+    BlockStore(File directory) {
+        mDirectory = directory;
+        load();
+    }
+
+    /**
+     * Id of the block whose record starts at the offset of the segment.
+     *
+     * @param segment segment file, one of {@link BlockCanaryInternals#getLogFiles()}
+     * @param offset  record offset, see {@link BlockLogReader#getRecordOffset(int)}
+     * @return block id, -1 if the file is not a segment
+     */
+    public static long blockId(File segment, long offset) {
+        int sequence = sequenceOf(segment.getName());
+        return sequence < 0 ? -1 : blockId(sequence, offset);
+    }
+
+    /**
+     * Append a block, rolling over to a new segment if the current one is full.
+     *
+     * @return block id
+     */
+    long append(BlockInfo blockInfo, long saveTime) throws IOException {
+        BlockLogWriter writer = writer();
+        return blockId(mWriterSequence, writer.append(blockInfo, saveTime));
+    }
+
+    /**
+     * Mark a block as deleted, nothing happens if its segment is gone already.
+     */
+    void delete(long blockId) throws IOException {
+        int sequence = (int) (blockId >>> 32);
+        long offset = blockId & 0xFFFFFFFFL;
+        if (blockId < 0 || !mSegments.contains(sequence)) {
+            return;
+        }
+        if (sequence == mWriterSequence) {
+            mWriter.delete(offset);
+            return;
+        }
+        //已经封口的段，临时打开写一条删除标记
+        BlockLogWriter writer = BlockLogWriter.open(segmentFile(sequence));
+        try {
+            writer.delete(offset);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * @return segment files, oldest first
+     */
+    File[] getSegments() {
+        List<File> files = new ArrayList<>(mSegments.size());
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            File file = segmentFile(mSegments.get(i));
+            //段文件可能被外部删掉了
+            if (file.exists()) {
+                files.add(0, file);
+            } else {
+                removeSegment(i);
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    /**
+     * Delete the segments last written before the time.
+     */
+    void deleteObsolete(long before) {
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            File file = segmentFile(mSegments.get(i));
+            if (file.lastModified() < before) {
+                removeSegment(i);
+                file.delete();
+            }
+        }
+    }
+
+    void deleteAll() {
+        for (int i = mSegments.size() - 1; i >= 0; i--) {
+            File file = segmentFile(mSegments.get(i));
+            removeSegment(i);
+            file.delete();
+        }
+    }
+
+    private BlockLogWriter writer() throws IOException {
+        if (mWriter != null && mWriter.length() < SEGMENT_SIZE) {
+            return mWriter;
+        }
+        int sequence;
+        if (mWriter == null && !mSegments.isEmpty()
+                && segmentFile(mSegments.get(mSegments.size() - 1)).length() < SEGMENT_SIZE) {
+            //上次进程没写满的段接着写
+            sequence = mSegments.remove(mSegments.size() - 1);
+        } else {
+            closeWriter();
+            sequence = mNextSequence++;
+        }
+        mWriter = BlockLogWriter.open(segmentFile(sequence));
+        mWriterSequence = sequence;
+        mSegments.add(sequence);
+
+        while (mSegments.size() > MAX_SEGMENTS) {
+            File oldest = segmentFile(mSegments.get(0));
+            removeSegment(0);
+            oldest.delete();
+        }
+        return mWriter;
+    }
+
+    private void removeSegment(int index) {
+        if (mSegments.remove(index) == mWriterSequence) {
+            closeWriter();
+        }
+    }
+
+    private void closeWriter() {
+        if (mWriter == null) {
+            return;
+        }
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.e(TAG, "close: ", e);
+        }
+        mWriter = null;
+        mWriterSequence = -1;
+    }
+
+    private void load() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> legacy = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            int sequence = sequenceOf(name);
+            if (sequence >= 0) {
+                mSegments.add(sequence);
+            } else if (name.endsWith(TEXT_LOG_SUFFIX) || name.endsWith(SEGMENT_SUFFIX)) {
+                legacy.add(file);
+            }
+        }
+        Collections.sort(mSegments);
+        if (!mSegments.isEmpty()) {
+            mNextSequence = mSegments.get(mSegments.size() - 1) + 1;
+        }
+
+        //旧版本一个卡顿一个文件，按写入顺序导入以后删掉
+        final Map<File, Long> lastModified = new HashMap<>();
+        for (File file : legacy) {
+            lastModified.put(file, file.lastModified());
+        }
+        Collections.sort(legacy, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = lastModified.get(lhs) - lastModified.get(rhs);
+                return diff > 0 ? 1 : diff < 0 ? -1 : 0;
+            }
+        });
+        long obsoleteBefore = System.currentTimeMillis() - LogWriter.OBSOLETE_DURATION;
+        for (File file : legacy) {
+            try {
+                importLog(file, lastModified.get(file));
+            } catch (Throwable t) {
+                Log.e(TAG, "import " + file + " failed", t);
+                //留着，下次打开时再试，过期了就不再试
+                if (lastModified.get(file) >= obsoleteBefore) {
+                    continue;
+                }
+            }
+            file.delete();
+        }
+    }
+
+    private void importLog(File file, long saveTime) throws IOException {
+        if (!BlockLogReader.isBlockLog(file)) {
+            append(BlockInfo.readText(file, new BlockInfo()), saveTime);
+            return;
+        }
+        //先全部读出来，读到一半失败时不会导入一部分
+        List<BlockInfo> blocks = new ArrayList<>();
+        List<Long> saveTimes = new ArrayList<>();
+        BlockLogReader reader = BlockLogReader.open(file);
+        try {
+            for (int i = 0; i < reader.getRecordCount(); i++) {
+                if (!reader.isDeleted(i)) {
+                    long recordTime = reader.getSaveTime(i);
+                    blocks.add(reader.read(i, new BlockInfo()));
+                    saveTimes.add(recordTime > 0 ? recordTime : saveTime);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        for (int i = 0; i < blocks.size(); i++) {
+            append(blocks.get(i), saveTimes.get(i));
+        }
+    }
+
+    private File segmentFile(int sequence) {
+        return new File(mDirectory, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX);
+    }
+
+    private static long blockId(int sequence, long offset) {
+        return (long) sequence << 32 | offset;
+    }
+
+    private static int sequenceOf(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                    name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
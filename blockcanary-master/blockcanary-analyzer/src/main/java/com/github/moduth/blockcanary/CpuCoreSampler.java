@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import com.github.moduth.blockcanary.internal.PerformanceUtils;
+import com.github.moduth.blockcanary.internal.ProcFile;
+
+/**
+ * Dumps per-core utilization from the {@code cpuN} lines of {@code /proc/stat}, plus current and
+ * max frequency from {@code /sys/devices/system/cpu/cpuN/cpufreq}.
+ * <p>
+ * All files stay open between ticks. For a block it reports, per core, the average busy
+ * percentage and frequency over the block window, and flags cores that were saturated or
+ * running well below their max frequency.
+ * </p>
+ *
+ * 按核采样 cpu 使用率和频率，用来判断主线程是不是跑在了降频的小核上
+ */
+class CpuCoreSampler extends AbstractSampler {
+
+    private static final int STAT_BUFFER_SIZE = 8192;
+    private static final int FREQ_BUFFER_SIZE = 32;
+    private static final byte[] CPU_LABEL = {'c', 'p', 'u'};
+    //快照环形缓冲区容量
+    private static final int MAX_SNAPSHOT_COUNT = 32;
+    //平均使用率超过这个值认为该核跑满了
+    private static final int SATURATED_PERCENT = 90;
+    //平均频率低于最大频率的这个比例认为降频了
+    private static final int DOWN_CLOCKED_PERCENT = 60;
+
+    private final int mCoreCount;
+    private ProcFile mStatFile;
+    private ProcFile[] mCurFreqFiles;
+    //单位 kHz，读不到时为 0
+    private long[] mMaxFreqs;
+    private final long[] mTotalLast;
+    private final long[] mIdleLast;
+
+    private final long[] mSnapshotTimes = new long[MAX_SNAPSHOT_COUNT];
+    //-1 表示该核离线或者没有数据
+    private final int[][] mSnapshotBusy;
+    private final long[][] mSnapshotFreqs;
+    private int mSnapshotCount = 0;
+
+    public CpuCoreSampler(long sampleInterval) {
+        super(sampleInterval);
+        mCoreCount = Math.max(1, PerformanceUtils.getNumCores());
+        mTotalLast = new long[mCoreCount];
+        mIdleLast = new long[mCoreCount];
+        mSnapshotBusy = new int[MAX_SNAPSHOT_COUNT][mCoreCount];
+        mSnapshotFreqs = new long[MAX_SNAPSHOT_COUNT][mCoreCount];
+    }
+
+    @Override
+    void onStart() {
+        synchronized (this) {
+            //上一轮留下的计数离现在可能很久了，不能和本轮第一个 tick 算差值
+            for (int core = 0; core < mCoreCount; core++) {
+                mTotalLast[core] = 0;
+                mIdleLast[core] = 0;
+            }
+        }
+    }
+
+    @Override
+    protected void doSample(long now) {
+        if (mStatFile == null) {
+            open();
+        }
+        if (!mStatFile.read()) {
+            return;
+        }
+        synchronized (this) {
+            int index = mSnapshotCount % MAX_SNAPSHOT_COUNT;
+            int[] busy = mSnapshotBusy[index];
+            long[] freqs = mSnapshotFreqs[index];
+            for (int core = 0; core < mCoreCount; core++) {
+                busy[core] = -1;
+            }
+
+            //跳过第一行的总体数据，后面每行是 "cpuN user nice system idle iowait irq softirq steal"
+            while (mStatFile.nextLine() && mStatFile.startsWith(CPU_LABEL)) {
+                mStatFile.skip(CPU_LABEL.length);
+                int core = (int) mStatFile.nextLong();
+                if (core < 0 || core >= mCoreCount) {
+                    continue;
+                }
+                long user = mStatFile.nextLong();
+                long nice = mStatFile.nextLong();
+                long system = mStatFile.nextLong();
+                long idle = mStatFile.nextLong();
+                long ioWait = mStatFile.nextLong();
+                long total = user + nice + system + idle + ioWait
+                        + mStatFile.nextLong() + mStatFile.nextLong() + mStatFile.nextLong();
+                long totalTime = total - mTotalLast[core];
+                if (mTotalLast[core] != 0 && totalTime > 0) {
+                    busy[core] = (int) ((totalTime - (idle + ioWait - mIdleLast[core])) * 100L
+                            / totalTime);
+                }
+                mTotalLast[core] = total;
+                mIdleLast[core] = idle + ioWait;
+            }
+
+            for (int core = 0; core < mCoreCount; core++) {
+                ProcFile freqFile = mCurFreqFiles[core];
+                freqs[core] = freqFile.read() ? freqFile.nextLong() : 0;
+            }
+            mSnapshotTimes[index] = now;
+            mSnapshotCount++;
+        }
+    }
+
+    /**
+     * Per-core average usage over the window, like
+     * "cpu0:95% 1200/1800MHz saturated, cpu4:10% 300/2400MHz down-clocked".
+     *
+     * @return usage string, or empty string if no snapshot falls inside the window
+     */
+    public String getCoreInfo(long start, long end) {
+        synchronized (this) {
+            long[] busySum = new long[mCoreCount];
+            int[] busyCount = new int[mCoreCount];
+            long[] freqSum = new long[mCoreCount];
+            int snapshots = 0;
+            for (int i = Math.max(0, mSnapshotCount - MAX_SNAPSHOT_COUNT); i < mSnapshotCount; i++) {
+                int index = i % MAX_SNAPSHOT_COUNT;
+                long time = mSnapshotTimes[index];
+                if (time < start || time > end) {
+                    continue;
+                }
+                snapshots++;
+                for (int core = 0; core < mCoreCount; core++) {
+                    if (mSnapshotBusy[index][core] >= 0) {
+                        busySum[core] += mSnapshotBusy[index][core];
+                        busyCount[core]++;
+                    }
+                    freqSum[core] += mSnapshotFreqs[index][core];
+                }
+            }
+            if (snapshots == 0) {
+                return "";
+            }
+
+            StringBuilder sb = new StringBuilder();
+            for (int core = 0; core < mCoreCount; core++) {
+                if (core > 0) {
+                    sb.append(", ");
+                }
+                sb.append("cpu").append(core).append(':');
+                if (busyCount[core] == 0) {
+                    sb.append("offline");
+                    continue;
+                }
+                long busy = busySum[core] / busyCount[core];
+                long freq = freqSum[core] / snapshots;
+                sb.append(busy).append('%');
+                if (freq > 0) {
+                    sb.append(' ').append(freq / 1000);
+                    if (mMaxFreqs[core] > 0) {
+                        sb.append('/').append(mMaxFreqs[core] / 1000);
+                    }
+                    sb.append("MHz");
+                }
+                if (busy >= SATURATED_PERCENT) {
+                    sb.append(" saturated");
+                }
+                if (freq > 0 && mMaxFreqs[core] > 0
+                        && freq * 100 < mMaxFreqs[core] * DOWN_CLOCKED_PERCENT) {
+                    sb.append(" down-clocked");
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private void open() {
+        mStatFile = new ProcFile("/proc/stat", STAT_BUFFER_SIZE);
+        mCurFreqFiles = new ProcFile[mCoreCount];
+        mMaxFreqs = new long[mCoreCount];
+        for (int core = 0; core < mCoreCount; core++) {
+            String dir = "/sys/devices/system/cpu/cpu" + core + "/cpufreq/";
+            mCurFreqFiles[core] = new ProcFile(dir + "scaling_cur_freq", FREQ_BUFFER_SIZE);
+            //最大频率不会变，只读一次
+            ProcFile maxFreqFile = new ProcFile(dir + "cpuinfo_max_freq", FREQ_BUFFER_SIZE);
+            mMaxFreqs[core] = maxFreqFile.read() ? maxFreqFile.nextLong() : 0;
+            maxFreqFile.close();
+        }
+    }
+}
@@ -15,150 +15,166 @@
  */
 package com.github.moduth.blockcanary;
 
-import android.util.Log;
-
 import com.github.moduth.blockcanary.internal.BlockInfo;
-
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import com.github.moduth.blockcanary.internal.ProcFile;
 
 /**
  * Dumps cpu usage.
+ * <p>
+ * Each sample is kept as primitive percentages in a fixed ring, and only formatted to text when
+ * a block is reported. Each record covers the interval since the previous sample, which lets
+ * {@link #getCpuContention(long, long)} weight it by its overlap with the block.
+ * </p>
  */
 class CpuSampler extends AbstractSampler {
 
-    private static final String TAG = "CpuSampler";
     private static final int BUFFER_SIZE = 1000;
+    private static final byte[] CPU_LABEL = {'c', 'p', 'u', ' '};
 
     /**
-     * TODO: Explain how we define cpu busy in README
+     * Contention score from which a block is flagged as cpu busy.
      */
-    private final int BUSY_TIME;
-    //容量为十个
-    private static final int MAX_ENTRY_COUNT = 10;
-    //用于存储时间戳和 cup信息的关系
-    private final LinkedHashMap<Long, String> mCpuInfoEntries = new LinkedHashMap<>();
-    private int mPid = 0;
+    static final int BUSY_CONTENTION = 50;
+    //环形缓冲区容量
+    private static final int MAX_ENTRY_COUNT = 100;
+
+    //以下为每次采样的数据，单位都是百分比，多留一个槽位给正在写入的数据
+    private static final int CAPACITY = MAX_ENTRY_COUNT + 1;
+    private final long[] mFromTimes = new long[CAPACITY];
+    private final long[] mTimes = new long[CAPACITY];
+    private final int[] mTotals = new int[CAPACITY];
+    private final int[] mApps = new int[CAPACITY];
+    private final int[] mUsers = new int[CAPACITY];
+    private final int[] mSystems = new int[CAPACITY];
+    private final int[] mIoWaits = new int[CAPACITY];
+    private final int[] mIrqs = new int[CAPACITY];
+    private final int[] mSteals = new int[CAPACITY];
+    //已写入的总数，单线程写，无锁读
+    private volatile long mWriteCount = 0;
+
+    //开启了采样日志时不为 null
+    private volatile BlockJournal mJournal;
+
+    private ProcFile mStatFile;
+    private ProcFile mPidStatFile;
+    private long mLastTime = 0;
     private long mUserLast = 0;
     private long mSystemLast = 0;
     private long mIdleLast = 0;
     private long mIoWaitLast = 0;
+    private long mIrqLast = 0;
+    private long mStealLast = 0;
     private long mTotalLast = 0;
     private long mAppCpuTimeLast = 0;
 
     public CpuSampler(long sampleInterval) {
         super(sampleInterval);
-        //采样时间 * 1.2 就是 繁忙时间
-        // mSampleInterval 默认为 1s
-        BUSY_TIME = (int) (mSampleInterval * 1.2f);
+    }
+
+    void setJournal(BlockJournal journal) {
+        mJournal = journal;
     }
 
     @Override
-    public void start() {
-        super.start();
+    void onStart() {
         reset();
     }
 
     /**
-     * Get cpu rate information
+     * Get cpu rate information of samples overlapping the given window.
      *
      * 获取cpu 使用率
-     *  这是吧记录的cup的信息都给 输出了
      * @return string show cpu rate information
      */
-    public String getCpuRateInfo() {
+    public String getCpuRateInfo(long start, long end) {
         StringBuilder sb = new StringBuilder();
-        synchronized (mCpuInfoEntries) {
-            for (Map.Entry<Long, String> entry : mCpuInfoEntries.entrySet()) {
-                long time = entry.getKey();
-                sb.append(BlockInfo.TIME_FORMATTER.format(time))
-                        .append(' ')
-                        .append(entry.getValue())
-                        .append(BlockInfo.SEPARATOR);
+        long count = mWriteCount;
+        for (long i = Math.max(0, count - MAX_ENTRY_COUNT); i < count; i++) {
+            int slot = (int) (i % CAPACITY);
+            long time = mTimes[slot];
+            if (time <= start || mFromTimes[slot] >= end) {
+                continue;
+            }
+            int total = mTotals[slot];
+            int app = mApps[slot];
+            int user = mUsers[slot];
+            int system = mSystems[slot];
+            int ioWait = mIoWaits[slot];
+            int irq = mIrqs[slot];
+            int steal = mSteals[slot];
+            if (i < mWriteCount - MAX_ENTRY_COUNT) {
+                //读取期间被覆盖了
+                continue;
             }
+            sb.append(BlockInfo.TIME_FORMATTER.format(time))
+                    .append(' ')
+                    .append("cpu:").append(total).append("% ") //cup 总的使用率
+                    .append("app:").append(app).append("% ") //app cup 使用率
+                    .append("[")
+                    .append("user:").append(user).append("% ") // 用户态使用率
+                    .append("system:").append(system).append("% ") //内核态使用率
+                    .append("ioWait:").append(ioWait).append("% ") // io等待率
+                    .append("irq:").append(irq).append("% ")
+                    .append("steal:").append(steal).append("% ]")
+                    .append(BlockInfo.SEPARATOR);
         }
         return sb.toString();
     }
 
-    public boolean isCpuBusy(long start, long end) {
-        if (end - start > mSampleInterval) {
-            //向前向后各扩展一个采样时间
-            //采样时间默认为 1s
-            long s = start - mSampleInterval;
-            long e = start + mSampleInterval;
-            long last = 0;
-            synchronized (mCpuInfoEntries) {
-                for (Map.Entry<Long, String> entry : mCpuInfoEntries.entrySet()) {
-                    long time = entry.getKey();
-                    //
-                    if (s < time && time < e) {
-                        //两个采样点的时间 大于 BUSY_TIME 就说明是 cup繁忙？？？
-                        if (last != 0 && time - last > BUSY_TIME) {
-                            return true;
-                        }
-                        last = time;
-                    }
-                }
+    /**
+     * Cpu contention score over a block window: the share of cpu time used by everything other
+     * than this app, plus time the cpu spent waiting for io or stolen by the hypervisor, averaged
+     * over the samples overlapping the window and weighted by their overlap.
+     *
+     * @return score in [0, 100], or -1 if no sample overlaps the window
+     */
+    public int getCpuContention(long start, long end) {
+        long weightSum = 0;
+        long scoreSum = 0;
+        long count = mWriteCount;
+        for (long i = Math.max(0, count - MAX_ENTRY_COUNT); i < count; i++) {
+            int slot = (int) (i % CAPACITY);
+            long from = Math.max(start, mFromTimes[slot]);
+            long to = Math.min(end, mTimes[slot]);
+            int others = Math.max(0, mTotals[slot] - mApps[slot]);
+            int score = Math.min(100, others + mIoWaits[slot] + mSteals[slot]);
+            if (to <= from || i < mWriteCount - MAX_ENTRY_COUNT) {
+                continue;
             }
+            weightSum += to - from;
+            scoreSum += score * (to - from);
         }
-        return false;
+        return weightSum == 0 ? -1 : (int) (scoreSum / weightSum);
+    }
+
+    public boolean isCpuBusy(long start, long end) {
+        return getCpuContention(start, end) >= BUSY_CONTENTION;
     }
 
     /**
      * 开始采样
      */
     @Override
-    protected void doSample() {
-        BufferedReader cpuReader = null;
-        BufferedReader pidReader = null;
-
-        try {
-            cpuReader = new BufferedReader(new InputStreamReader(
-                    new FileInputStream("/proc/stat")), BUFFER_SIZE);
-            //整体cpu使用率
-            String cpuRate = cpuReader.readLine();
-            if (cpuRate == null) {
-                cpuRate = "";
-            }
-
-            if (mPid == 0) {
-                mPid = android.os.Process.myPid();
-            }
-            pidReader = new BufferedReader(new InputStreamReader(
-                    new FileInputStream("/proc/" + mPid + "/stat")), BUFFER_SIZE);
-            //当前app cup使用率
-            String pidCpuRate = pidReader.readLine();
-            if (pidCpuRate == null) {
-                pidCpuRate = "";
-            }
-
+    protected void doSample(long time) {
+        if (mStatFile == null) {
+            mStatFile = new ProcFile("/proc/stat", BUFFER_SIZE);
+            mPidStatFile = new ProcFile("/proc/" + android.os.Process.myPid() + "/stat", BUFFER_SIZE);
+        }
+        //整体cpu使用率 和 当前app cup使用率
+        if (mStatFile.read() && mPidStatFile.read()) {
             //解析
-            parse(cpuRate, pidCpuRate);
-        } catch (Throwable throwable) {
-            Log.e(TAG, "doSample: ", throwable);
-        } finally {
-            try {
-                if (cpuReader != null) {
-                    cpuReader.close();
-                }
-                if (pidReader != null) {
-                    pidReader.close();
-                }
-            } catch (IOException exception) {
-                Log.e(TAG, "doSample: ", exception);
-            }
+            parse(time, mStatFile, mPidStatFile);
         }
     }
 
     private void reset() {
+        mLastTime = 0;
         mUserLast = 0;
         mSystemLast = 0;
         mIdleLast = 0;
         mIoWaitLast = 0;
+        mIrqLast = 0;
+        mStealLast = 0;
         mTotalLast = 0;
         mAppCpuTimeLast = 0;
     }
@@ -166,72 +182,63 @@ class CpuSampler extends AbstractSampler {
     /**
      * 参考：https://www.cnblogs.com/aziji/articles/9634960.html
      */
-    private void parse(String cpuRate, String pidCpuRate) {
-        String[] cpuInfoArray = cpuRate.split(" ");
-        if (cpuInfoArray.length < 9) {
+    private void parse(long now, ProcFile cpuRate, ProcFile pidCpuRate) {
+        //第一行是 "cpu  user nice system idle iowait irq softirq steal ..."
+        if (!cpuRate.startsWith(CPU_LABEL)) {
             return;
         }
+        cpuRate.skipFields(1);
 
         //分别读出这几个时间 这些是证系统的cup使用率
-        long user = Long.parseLong(cpuInfoArray[2]);
-        long nice = Long.parseLong(cpuInfoArray[3]);
-        long system = Long.parseLong(cpuInfoArray[4]);
-        long idle = Long.parseLong(cpuInfoArray[5]);
-        long ioWait = Long.parseLong(cpuInfoArray[6]);
-        long total = user + nice + system + idle + ioWait
-                + Long.parseLong(cpuInfoArray[7])
-                + Long.parseLong(cpuInfoArray[8]);
-
-        String[] pidCpuInfoList = pidCpuRate.split(" ");
-        if (pidCpuInfoList.length < 17) {
+        long user = cpuRate.nextLong();
+        long nice = cpuRate.nextLong();
+        long system = cpuRate.nextLong();
+        long idle = cpuRate.nextLong();
+        long ioWait = cpuRate.nextLong();
+        long irq = cpuRate.nextLong() + cpuRate.nextLong();
+        long steal = cpuRate.nextLong();
+        long total = user + nice + system + idle + ioWait + irq + steal;
+
+        //comm 字段里可能有空格和括号，所以从最后一个 ')' 之后开始数，utime 是第 14 个字段
+        if (!pidCpuRate.seekAfterLast((byte) ')')) {
             return;
         }
-
-        //这个是app的cup使用时间
-        long appCpuTime = Long.parseLong(pidCpuInfoList[13])
-                + Long.parseLong(pidCpuInfoList[14])
-                + Long.parseLong(pidCpuInfoList[15])
-                + Long.parseLong(pidCpuInfoList[16]);
-
-        if (mTotalLast != 0) {
-            StringBuilder stringBuilder = new StringBuilder();
-            long idleTime = idle - mIdleLast;
-            long totalTime = total - mTotalLast;
-
-            stringBuilder
-                    .append("cpu:")
-                    .append((totalTime - idleTime) * 100L / totalTime) //cup 总的使用率
-                    .append("% ")
-                    .append("app:")
-                    .append((appCpuTime - mAppCpuTimeLast) * 100L / totalTime) //app cup 使用率
-                    .append("% ")
-                    .append("[")
-                    .append("user:").append((user - mUserLast) * 100L / totalTime) // 用户态使用率
-                    .append("% ")
-                    .append("system:").append((system - mSystemLast) * 100L / totalTime) //内核态使用率
-                    .append("% ")
-                    .append("ioWait:").append((ioWait - mIoWaitLast) * 100L / totalTime)// io等待率
-                    .append("% ]");
-
-            synchronized (mCpuInfoEntries) {
-                //时间戳和 cup信息存起来
-                mCpuInfoEntries.put(System.currentTimeMillis(), stringBuilder.toString());
-                //超过容量就删一个
-                if (mCpuInfoEntries.size() > MAX_ENTRY_COUNT) {
-                    for (Map.Entry<Long, String> entry : mCpuInfoEntries.entrySet()) {
-                        Long key = entry.getKey();
-                        mCpuInfoEntries.remove(key);
-                        break;
-                    }
-                }
+        pidCpuRate.skipFields(11);
+
+        //这个是app的cup使用时间 utime + stime + cutime + cstime
+        long appCpuTime = pidCpuRate.nextLong()
+                + pidCpuRate.nextLong()
+                + pidCpuRate.nextLong()
+                + pidCpuRate.nextLong();
+
+        long totalTime = total - mTotalLast;
+        if (mTotalLast != 0 && totalTime > 0) {
+            long count = mWriteCount;
+            int slot = (int) (count % CAPACITY);
+            mFromTimes[slot] = mLastTime;
+            mTimes[slot] = now;
+            mTotals[slot] = (int) ((totalTime - (idle - mIdleLast)) * 100L / totalTime);
+            mApps[slot] = (int) ((appCpuTime - mAppCpuTimeLast) * 100L / totalTime);
+            mUsers[slot] = (int) ((user - mUserLast) * 100L / totalTime);
+            mSystems[slot] = (int) ((system - mSystemLast) * 100L / totalTime);
+            mIoWaits[slot] = (int) ((ioWait - mIoWaitLast) * 100L / totalTime);
+            mIrqs[slot] = (int) ((irq - mIrqLast) * 100L / totalTime);
+            mSteals[slot] = (int) ((steal - mStealLast) * 100L / totalTime);
+            mWriteCount = count + 1;
+            BlockJournal journal = mJournal;
+            if (journal != null) {
+                journal.appendCpu(now, mTotals[slot], mApps[slot]);
             }
         }
+        mLastTime = now;
         mUserLast = user;
         mSystemLast = system;
         mIdleLast = idle;
         mIoWaitLast = ioWait;
+        mIrqLast = irq;
+        mStealLast = steal;
         mTotalLast = total;
 
         mAppCpuTimeLast = appCpuTime;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+/**
+ * Interning dictionary which maps each distinct {@link StackTraceElement} to a small int id.
+ * <p>
+ * Only the sampling thread may intern; ids handed out are never reused, so other threads can
+ * resolve any id they have seen published through {@link StackRing}.
+ * </p>
+ *
+ * 栈帧字典，把 StackTraceElement 映射成 int id
+ */
+final class FrameTable {
+
+    static final int NO_ID = -1;
+
+    private static final int DEFAULT_MAX_FRAME_COUNT = 16384;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final int mMaxFrameCount;
+    //开放寻址哈希表，保存 id + 1，0 表示空
+    private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+    private volatile StackTraceElement[] mFrames = new StackTraceElement[INITIAL_CAPACITY];
+    private int mSize = 0;
+
+    FrameTable() {
+        this(DEFAULT_MAX_FRAME_COUNT);
+    }
+
+    FrameTable(int maxFrameCount) {
+        mMaxFrameCount = maxFrameCount;
+    }
+
+    /**
+     * Intern a whole stack.
+     *
+     * @return frame ids, or null if the table is full and some frame is unknown
+     */
+    int[] intern(StackTraceElement[] stack) {
+        int[] ids = new int[stack.length];
+        for (int i = 0; i < stack.length; i++) {
+            int id = intern(stack[i]);
+            if (id == NO_ID) {
+                return null;
+            }
+            ids[i] = id;
+        }
+        return ids;
+    }
+
+    /**
+     * Intern a single frame.
+     *
+     * @return frame id, or {@link #NO_ID} if the table is full and the frame is unknown
+     */
+    int intern(StackTraceElement frame) {
+        int mask = mSlots.length - 1;
+        int index = mix(frame.hashCode()) & mask;
+        StackTraceElement[] frames = mFrames;
+        while (mSlots[index] != 0) {
+            int id = mSlots[index] - 1;
+            if (frames[id].equals(frame)) {
+                return id;
+            }
+            index = (index + 1) & mask;
+        }
+
+        if (mSize >= mMaxFrameCount) {
+            return NO_ID;
+        }
+        if (mSize == frames.length) {
+            StackTraceElement[] grown = new StackTraceElement[frames.length * 2];
+            System.arraycopy(frames, 0, grown, 0, mSize);
+            frames = grown;
+        }
+        int id = mSize++;
+        frames[id] = frame;
+        mSlots[index] = id + 1;
+        mFrames = frames;
+
+        //负载因子超过 0.5 就扩容
+        if (mSize * 2 >= mSlots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * Resolve an id published by the sampling thread.
+     */
+    StackTraceElement get(int id) {
+        return mFrames[id];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private void rehash() {
+        int[] slots = new int[mSlots.length * 2];
+        int mask = slots.length - 1;
+        StackTraceElement[] frames = mFrames;
+        for (int id = 0; id < mSize; id++) {
+            int index = mix(frames[id].hashCode()) & mask;
+            while (slots[index] != 0) {
+                index = (index + 1) & mask;
+            }
+            slots[index] = id + 1;
+        }
+        mSlots = slots;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+/**
+ * Periodic checker on the timer thread which reports a dispatch that has run longer than the
+ * freeze threshold while it is still running.
+ * <p>
+ * {@link LooperMonitor} only reports a block when the message finishes, which never happens on a
+ * deadlock or when the process is killed by an ANR. This watchdog lets a provisional block
+ * record be persisted once per dispatch, which is finalized if the message completes later.
+ * </p>
+ *
+ * 卡死检测：消息分发超过硬性阈值还没结束时，先落盘一条临时记录
+ */
+final class FreezeWatchdog implements Runnable {
+
+    //每个阈值内检查的次数
+    private static final int CHECKS_PER_THRESHOLD = 5;
+    private static final long MIN_CHECK_INTERVAL_MILLIS = 100;
+
+    private final LooperMonitor mMonitor;
+    private final long mFreezeThreshold;
+    private final long mCheckInterval;
+
+    //已经报告过的分发序号，只在 BlockCanary-loop 线程访问
+    private int mReportedSequence = 0;
+
+    FreezeWatchdog(LooperMonitor monitor, long freezeThreshold) {
+        mMonitor = monitor;
+        mFreezeThreshold = freezeThreshold;
+        mCheckInterval = Math.max(MIN_CHECK_INTERVAL_MILLIS,
+                freezeThreshold / CHECKS_PER_THRESHOLD);
+    }
+
+    void start() {
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(this);
+        HandlerThreadFactory.getTimerThreadHandler().postDelayed(this, mCheckInterval);
+    }
+
+    void stop() {
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(this);
+    }
+
+    @Override
+    public void run() {
+        int sequence = mMonitor.getDispatchSequence();
+        //奇数序号表示主线程正在分发消息，断点调试时不算卡死
+        if ((sequence & 1) == 1 && sequence != mReportedSequence
+                && !mMonitor.isPausedForDebugger()) {
+            long start = mMonitor.getDispatchStartMillis();
+            long now = System.currentTimeMillis();
+            if (now - start >= mFreezeThreshold) {
+                mReportedSequence = sequence;
+                mMonitor.notifyFreezeEvent(start, now);
+            }
+        }
+        HandlerThreadFactory.getTimerThreadHandler().postDelayed(this, mCheckInterval);
+    }
+}
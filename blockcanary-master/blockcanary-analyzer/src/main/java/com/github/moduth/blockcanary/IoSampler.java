@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import com.github.moduth.blockcanary.internal.ProcFile;
+
+/**
+ * Dumps I/O accounting of the process from {@code /proc/self/io} and of the monitored thread
+ * from {@code /proc/self/task/<tid>/io}.
+ * <p>
+ * For a block it reports the deltas over the block window, see {@link SnapshotSampler}:
+ * {@code rchar}/{@code wchar} count every read/write syscall including page cache hits,
+ * {@code read_bytes}/{@code write_bytes} only what actually went to storage. Thread io is skipped
+ * when the kernel does not let us read it.
+ * </p>
+ *
+ * I/O 采样，用来发现藏在 SharedPreferences 或者数据库调用后面的磁盘读写
+ */
+class IoSampler extends SnapshotSampler {
+
+    private static final int BUFFER_SIZE = 512;
+    private static final long KB = 1024;
+
+    //按 /proc/<pid>/io 中的行序排列，seekLine 只会往后找
+    private static final byte[][] FIELDS = {
+            {'r', 'c', 'h', 'a', 'r', ':'},
+            {'w', 'c', 'h', 'a', 'r', ':'},
+            {'s', 'y', 's', 'c', 'r', ':'},
+            {'s', 'y', 's', 'c', 'w', ':'},
+            {'r', 'e', 'a', 'd', '_', 'b', 'y', 't', 'e', 's', ':'},
+            {'w', 'r', 'i', 't', 'e', '_', 'b', 'y', 't', 'e', 's', ':'},
+    };
+    private static final int RCHAR = 0;
+    private static final int WCHAR = 1;
+    private static final int SYSCR = 2;
+    private static final int SYSCW = 3;
+    private static final int READ_BYTES = 4;
+    private static final int WRITE_BYTES = 5;
+
+    private final ProcFile mProcessFile = new ProcFile("/proc/self/io", BUFFER_SIZE);
+    private final ProcFile mThreadFile;
+
+    //读不到时整行为 -1
+    private final long[][] mProcessValues = new long[MAX_SNAPSHOT_COUNT][FIELDS.length];
+    private final long[][] mThreadValues = new long[MAX_SNAPSHOT_COUNT][FIELDS.length];
+
+    /**
+     * @param threadId       tid of the monitored thread
+     * @param sampleInterval sample interval (in millis)
+     */
+    public IoSampler(int threadId, long sampleInterval) {
+        super(sampleInterval);
+        mThreadFile = new ProcFile("/proc/self/task/" + threadId + "/io", BUFFER_SIZE);
+    }
+
+    /**
+     * I/O deltas over the window, like
+     * "process read:1200KB(340KB disk, 52 calls) write:16KB(0KB disk, 3 calls), main read:...".
+     *
+     * @return io string, or empty string if no snapshot falls inside the window
+     */
+    public String getIoInfo(long start, long end) {
+        synchronized (this) {
+            if (!selectWindow(start, end)) {
+                return "";
+            }
+
+            StringBuilder sb = new StringBuilder();
+            appendDeltas(sb, "process", mProcessValues[mFromIndex], mProcessValues[mToIndex]);
+            appendDeltas(sb, "main", mThreadValues[mFromIndex], mThreadValues[mToIndex]);
+            return sb.toString();
+        }
+    }
+
+    @Override
+    void readSnapshot(int index) {
+        readValues(mProcessFile, mProcessValues[index]);
+        readValues(mThreadFile, mThreadValues[index]);
+    }
+
+    private static void appendDeltas(StringBuilder sb, String label, long[] from, long[] to) {
+        if (from[RCHAR] < 0 || to[RCHAR] < 0) {
+            return;
+        }
+        if (sb.length() > 0) {
+            sb.append(", ");
+        }
+        sb.append(label)
+                .append(" read:").append((to[RCHAR] - from[RCHAR]) / KB)
+                .append("KB(").append((to[READ_BYTES] - from[READ_BYTES]) / KB)
+                .append("KB disk, ").append(to[SYSCR] - from[SYSCR]).append(" calls)")
+                .append(" write:").append((to[WCHAR] - from[WCHAR]) / KB)
+                .append("KB(").append((to[WRITE_BYTES] - from[WRITE_BYTES]) / KB)
+                .append("KB disk, ").append(to[SYSCW] - from[SYSCW]).append(" calls)");
+    }
+
+    private static void readValues(ProcFile file, long[] values) {
+        if (!file.read()) {
+            values[RCHAR] = -1;
+            return;
+        }
+        for (int i = 0; i < FIELDS.length; i++) {
+            //read_bytes 之类的字段在没开 task io accounting 的内核上不存在
+            values[i] = file.seekLine(FIELDS[i]) ? file.nextLong() : 0;
+        }
+    }
+}
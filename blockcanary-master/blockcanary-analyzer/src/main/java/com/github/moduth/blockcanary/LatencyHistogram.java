@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of message dispatch times, recorded for every message of a looper.
+ * <p>
+ * Values below 8ms have their own bucket, above that every power of two is split into 8 linear
+ * buckets, so a bucket is at most 12.5% wide and values up to about 35 minutes fit into a fixed
+ * array of 152 counts. Only the looper thread records, so recording is an index computation and
+ * an ordered store without locks; other threads read a {@link Snapshot}.
+ * </p>
+ *
+ * 每条消息耗时的分布，对数线性分桶
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    //最大的幂次，超过 2^20ms 的记在最后一个桶
+    private static final int MAX_EXPONENT = 20;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    //只有 Looper 线程写，用 lazySet 发布给读线程
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private volatile long mMax = 0;
+
+    /**
+     * Record one dispatch, call on the looper thread only.
+     *
+     * @param millis dispatch time
+     */
+    void record(long millis) {
+        int index = indexOf(millis);
+        mCounts.lazySet(index, mCounts.get(index) + 1);
+        if (millis > mMax) {
+            mMax = millis;
+        }
+    }
+
+    /**
+     * Percentiles of all dispatches recorded so far.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(copyCounts(), null, mMax);
+    }
+
+    long getMax() {
+        return mMax;
+    }
+
+    /**
+     * Copy the current counts, can be used with {@link Snapshot#Snapshot(long[], long[], long)}
+     * to get the percentiles of an interval.
+     */
+    long[] copyCounts() {
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        //最高位之后的 3 位决定桶内位置
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT
+                + (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    /**
+     * Highest value that falls into the bucket.
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        long subBucket = SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * Percentiles computed from a copy of the counts, values are the upper bound of the bucket
+     * the percentile falls into.
+     */
+    public static final class Snapshot {
+
+        public final long count;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        /**
+         * @param counts  bucket counts
+         * @param base    counts to subtract, like the counts of the previous snapshot, or null
+         * @param maxSeen max recorded value, caps the bucket upper bounds
+         */
+        Snapshot(long[] counts, long[] base, long maxSeen) {
+            long total = 0;
+            int highest = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (base != null) {
+                    counts[i] -= base[i];
+                }
+                if (counts[i] > 0) {
+                    total += counts[i];
+                    highest = i;
+                }
+            }
+            count = total;
+            p50 = percentile(counts, total, 50, maxSeen);
+            p90 = percentile(counts, total, 90, maxSeen);
+            p99 = percentile(counts, total, 99, maxSeen);
+            max = total == 0 ? 0 : Math.min(highestValueOf(highest), maxSeen);
+        }
+
+        private static long percentile(long[] counts, long total, int percent, long maxSeen) {
+            if (total == 0) {
+                return 0;
+            }
+            //向上取整，至少要覆盖这么多个值
+            long rank = (total * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueOf(i), maxSeen);
+                }
+            }
+            return maxSeen;
+        }
+
+        @Override
+        public String toString() {
+            return "count:" + count + " p50:" + p50 + "ms p90:" + p90 + "ms p99:" + p99
+                    + "ms max:" + max + "ms";
+        }
+    }
+}
@@ -18,12 +18,16 @@ package com.github.moduth.blockcanary;
 import android.util.Log;
 
 import com.github.moduth.blockcanary.internal.BlockInfo;
+import com.github.moduth.blockcanary.internal.BlockLogReader;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -32,115 +36,255 @@ import java.util.Locale;
 public class LogWriter {
 
     private static final String TAG = "LogWriter";
+    /**
+     * Suffix of block logs in the binary format of
+     * {@link com.github.moduth.blockcanary.internal.BlockLogWriter}.
+     */
+    public static final String BINARY_LOG_SUFFIX = ".blk";
 
     private static final Object SAVE_DELETE_LOCK = new Object();
     private static final SimpleDateFormat FILE_NAME_FORMATTER
             = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss.SSS", Locale.US);
     private static final SimpleDateFormat TIME_FORMATTER
             = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
-    private static final long OBSOLETE_DURATION = 2 * 24 * 3600 * 1000L;
+    static final long OBSOLETE_DURATION = 2 * 24 * 3600 * 1000L;
+    private static final String LATENCY_FILE = "latency.txt";
+    //耗时分布文件超过这个大小就轮换成 .old
+    private static final long MAX_LATENCY_FILE_SIZE = 256 * 1024;
+    //只在 SAVE_DELETE_LOCK 里用
+    private static BlockStore sBlockStore;
 
     private LogWriter() {
         throw new InstantiationError("Must not instantiate this class");
     }
 
     /**
-     * Save log to file
+     * Save a block to the {@link BlockStore}.
      *
-     * @param str block info string
-     * @return log file path
+     * @param blockInfo block info
+     * @return block id, -1 if failed
      */
-    public static String save(String str) {
-        String path;
+    public static long save(BlockInfo blockInfo) {
         synchronized (SAVE_DELETE_LOCK) {
-            path = save("looper", str);
+            try {
+                return getBlockStore().append(blockInfo, System.currentTimeMillis());
+            } catch (Throwable t) {
+                Log.e(TAG, "save: ", t);
+                return -1;
+            }
         }
-        return path;
     }
 
     /**
-     * Delete obsolete log files, which is by default 2 days.
+     * Delete a block saved by {@link #save(BlockInfo)}, like a provisional freeze record that
+     * has been superseded by the final one. The tombstone is written on the writer thread.
      *
-     * 删除过时的日志，默认为两天
+     * @param blockId block id
      */
-    public static void cleanObsolete() {
-        //获取 BlockCanary-writer 这个子线程 handler ，
+    public static void delete(final long blockId) {
+        //删除可能要重新打开已经封口的段，不能在界面线程做
         HandlerThreadFactory.getWriteLogThreadHandler().post(new Runnable() {
             @Override
             public void run() {
-                long now = System.currentTimeMillis();
-                File[] f = BlockCanaryInternals.getLogFiles();
-                if (f != null && f.length > 0) {
-                    synchronized (SAVE_DELETE_LOCK) {
-                        for (File aF : f) {
-                            //最后修改时间 》 两天就删除掉
-                            if (now - aF.lastModified() > OBSOLETE_DURATION) {
-                                aF.delete();
-                            }
-                        }
+                synchronized (SAVE_DELETE_LOCK) {
+                    try {
+                        getBlockStore().delete(blockId);
+                    } catch (Throwable t) {
+                        Log.e(TAG, "delete: ", t);
                     }
                 }
             }
         });
     }
 
-    public static void deleteAll() {
-        synchronized (SAVE_DELETE_LOCK) {
+    /**
+     * Append a line to the latency file, keeping the previous file as latency.txt.old once it
+     * grows past {@link #MAX_LATENCY_FILE_SIZE}.
+     *
+     * @param line latency line without separator
+     */
+    public static void saveLatency(String line) {
+        BufferedWriter writer = null;
+        try {
+            File file = new File(BlockCanaryInternals.detectedBlockDirectory(), LATENCY_FILE);
+            if (file.length() > MAX_LATENCY_FILE_SIZE) {
+                File old = new File(file.getPath() + ".old");
+                if (old.exists() && !old.delete() || !file.renameTo(old)) {
+                    Log.w(TAG, "rotate " + file + " failed");
+                }
+            }
+            writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+            writer.write(TIME_FORMATTER.format(System.currentTimeMillis()));
+            writer.write(' ');
+            writer.write(line);
+            writer.write(BlockInfo.SEPARATOR);
+            writer.flush();
+            writer.close();
+            writer = null;
+        } catch (Throwable t) {
+            Log.e(TAG, "saveLatency: ", t);
+        } finally {
             try {
-                File[] files = BlockCanaryInternals.getLogFiles();
-                if (files != null && files.length > 0) {
-                    for (File file : files) {
-                        file.delete();
-                    }
+                if (writer != null) {
+                    writer.close();
                 }
-            } catch (Throwable e) {
-                Log.e(TAG, "deleteAll: ", e);
+            } catch (Exception e) {
+                Log.e(TAG, "saveLatency: ", e);
             }
         }
     }
 
-    private static String save(String logFileName, String str) {
-        String path = "";
+    /**
+     * Write a block as a text log in the format older versions saved, readable by
+     * {@link BlockInfo#readText(File, BlockInfo)}.
+     *
+     * @param file      file to write, replaced if it exists
+     * @param blockText block text, see {@link BlockInfo#toString()}
+     * @param saveTime  time the block was saved, written in the header
+     * @return false if the file can not be written
+     */
+    public static boolean writeText(File file, String blockText, long saveTime) {
         BufferedWriter writer = null;
         try {
-            File file = BlockCanaryInternals.detectedBlockDirectory();
-            long time = System.currentTimeMillis();
-
-            //文件名的格式为 Looper-yyyy-MM-dd_HH-mm-ss.SSS.log
-            path = file.getAbsolutePath() + "/"
-                    + logFileName + "-"
-                    + FILE_NAME_FORMATTER.format(time) + ".log";
-
-            OutputStreamWriter out =
-                    new OutputStreamWriter(new FileOutputStream(path, true), "UTF-8");
-
-            writer = new BufferedWriter(out);
-
+            writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
             writer.write(BlockInfo.SEPARATOR);
             writer.write("**********************");
             writer.write(BlockInfo.SEPARATOR);
-            writer.write(TIME_FORMATTER.format(time) + "(write log time)");
+            writer.write(TIME_FORMATTER.format(saveTime) + "(write log time)");
             writer.write(BlockInfo.SEPARATOR);
             writer.write(BlockInfo.SEPARATOR);
-            writer.write(str);
+            writer.write(blockText);
             writer.write(BlockInfo.SEPARATOR);
-
             writer.flush();
             writer.close();
             writer = null;
-
+            return true;
         } catch (Throwable t) {
-            Log.e(TAG, "save: ", t);
+            Log.e(TAG, "writeText: ", t);
+            return false;
         } finally {
             try {
                 if (writer != null) {
                     writer.close();
                 }
             } catch (Exception e) {
-                Log.e(TAG, "save: ", e);
+                Log.e(TAG, "writeText: ", e);
             }
         }
-        return path;
+    }
+
+    /**
+     * Export every block that is not deleted as a text log named
+     * looper-yyyy-MM-dd_HH-mm-ss.SSS.log, after the time it was saved, call on the writer
+     * thread. Segments are binary, this is what {@link BlockCanaryContext#zip(File[], File)}
+     * gets instead.
+     *
+     * @param directory directory to write into, created if missing
+     * @return text logs written, oldest first
+     */
+    static File[] exportText(File directory) {
+        List<File> files = new ArrayList<>();
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.e(TAG, "exportText: can not create " + directory);
+            return new File[0];
+        }
+        synchronized (SAVE_DELETE_LOCK) {
+            for (File segment : getBlockStore().getSegments()) {
+                BlockLogReader reader = null;
+                try {
+                    reader = BlockLogReader.open(segment);
+                    for (int i = 0; i < reader.getRecordCount(); i++) {
+                        if (reader.isDeleted(i)) {
+                            continue;
+                        }
+                        long saveTime = reader.getSaveTime(i);
+                        String text = reader.read(i, new BlockInfo()).flushString().toString();
+                        //同一毫秒保存的卡顿加上序号区分
+                        String name = "looper-" + FILE_NAME_FORMATTER.format(saveTime);
+                        File file = new File(directory, name + ".log");
+                        for (int n = 1; file.exists(); n++) {
+                            file = new File(directory, name + "-" + n + ".log");
+                        }
+                        if (writeText(file, text, saveTime)) {
+                            files.add(file);
+                        }
+                    }
+                } catch (IOException e) {
+                    //段已经损坏，能读出来的照样导出
+                    Log.e(TAG, "exportText: " + segment, e);
+                } finally {
+                    try {
+                        if (reader != null) {
+                            reader.close();
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "exportText: ", e);
+                    }
+                }
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    /**
+     * Delete obsolete log segments, which is by default 2 days.
+     *
+     * 删除过时的日志段，默认为两天
+     */
+    public static void cleanObsolete() {
+        //获取 BlockCanary-writer 这个子线程 handler ，
+        HandlerThreadFactory.getWriteLogThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SAVE_DELETE_LOCK) {
+                    //整段删除，段里最后一条写入超过两天才删
+                    getBlockStore().deleteObsolete(System.currentTimeMillis() - OBSOLETE_DURATION);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete all blocks on the writer thread.
+     *
+     * @param onDeleted run on the writer thread once the blocks are deleted, may be null
+     */
+    public static void deleteAll(final Runnable onDeleted) {
+        //第一次用到时会打开 BlockStore 并导入旧日志，不能在界面线程做
+        HandlerThreadFactory.getWriteLogThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SAVE_DELETE_LOCK) {
+                    try {
+                        getBlockStore().deleteAll();
+                    } catch (Throwable e) {
+                        Log.e(TAG, "deleteAll: ", e);
+                    }
+                }
+                if (onDeleted != null) {
+                    onDeleted.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return segment files of the block store, oldest first
+     */
+    static File[] getSegments() {
+        synchronized (SAVE_DELETE_LOCK) {
+            return getBlockStore().getSegments();
+        }
+    }
+
+    //第一次用到时才打开，打开时会导入旧的日志文件
+    private static BlockStore getBlockStore() {
+        if (sBlockStore == null) {
+            sBlockStore = new BlockStore(BlockCanaryInternals.detectedBlockDirectory());
+        }
+        return sBlockStore;
     }
 
     public static File generateTempZip(String filename) {
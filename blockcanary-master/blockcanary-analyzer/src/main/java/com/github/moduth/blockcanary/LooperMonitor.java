@@ -16,54 +16,124 @@
 package com.github.moduth.blockcanary;
 
 import android.os.Debug;
+import android.os.Handler;
 import android.os.SystemClock;
 import android.util.Log;
 import android.util.Printer;
 
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 class LooperMonitor implements Printer {
 
     private static final int DEFAULT_BLOCK_THRESHOLD_MILLIS = 3000;
     private static final String TAG = "LooperMonitor";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+    //调试器状态的轮询间隔
+    private static final long DEBUGGER_POLL_INTERVAL_MILLIS = 1000;
 
     //卡顿的阀值， 当超过这个会被认为为卡段，BlockCanaryContext中默认为 1s
     private long mBlockThresholdMillis = DEFAULT_BLOCK_THRESHOLD_MILLIS;
+    //采样延时，是卡顿阀值*0.8，避免非耗时消息也进行采样而浪费资源
+    private final long mSampleDelay;
+    //本监控器是否已经启动了共用的采样调度器，保证启动和停止成对
+    private final AtomicBoolean mDumping = new AtomicBoolean(false);
+    //停止或释放以后 Looper 线程可能还在旧的 Printer 里，这时不能再占用采样器
+    private volatile boolean mStopped = false;
     private long mStartTimestamp = 0;
     private long mStartThreadTimestamp = 0;
     private boolean mPrintingStarted = false;
+    //给 BlockCanary-loop 线程上的 SamplerWatchdog 和 BaselineStackSampler 读取，序号为奇数表示正在分发消息
+    private volatile long mDispatchStartMillis = 0;
+    private volatile int mDispatchSequence = 0;
+    //懒启动模式下不为 null
+    private final SamplerWatchdog mSamplerWatchdog;
+    //开启卡死检测时不为 null
+    private final FreezeWatchdog mFreezeWatchdog;
+    //开启常驻堆栈采样时不为 null，在 start 之前设置
+    private BaselineStackSampler mBaselineSampler;
+
+    //每条消息的耗时分布，只在 Looper 线程记录
+    private final LatencyHistogram mLatencyHistogram = new LatencyHistogram();
+    //从 >>>>> 行解析出的消息来源，和它们各自的耗时统计
+    private final MessageSourceTable mMessageSources = new MessageSourceTable();
+    //正在分发的消息来源，给 BlockCanary-loop 线程上的 FreezeWatchdog 读取
+    private volatile MessageSource mDispatchSource;
 
     //卡顿回调
     private BlockListener mBlockListener = null;
+    //所有 Looper 的监控器共用的采样调度器
+    private final SamplingScheduler mScheduler;
     //在调试模式下是否停止 检测，默认为 true
     private final boolean mStopWhenDebugging;
+    //由 BlockCanary-loop 线程定时刷新，避免每条消息都去查询 Debug.isDebuggerConnected()
+    private volatile boolean mDebuggerConnected = false;
+
+    private final Runnable mDebuggerPoller = new Runnable() {
+        @Override
+        public void run() {
+            boolean connected = Debug.isDebuggerConnected();
+            boolean connecting = connected && !mDebuggerConnected;
+            mDebuggerConnected = connected;
+            //分发到一半连上调试器，结束的 println 会被跳过，这里释放采样器
+            if (connecting) {
+                stopDump();
+            }
+            HandlerThreadFactory.getTimerThreadHandler()
+                    .postDelayed(this, DEBUGGER_POLL_INTERVAL_MILLIS);
+        }
+    };
 
     public interface BlockListener {
         void onBlockEvent(long realStartTime,
                           long realTimeEnd,
                           long threadTimeStart,
-                          long threadTimeEnd);
+                          long threadTimeEnd,
+                          MessageSource source);
+
+        /**
+         * Called on the writer thread when a dispatch is still running after the freeze
+         * threshold, at most once per dispatch.
+         */
+        void onFreezeEvent(long realTimeStart, long realTimeNow, MessageSource source);
     }
 
     public LooperMonitor(BlockListener blockListener, //卡顿回调
+                         SamplingScheduler scheduler,//共用的采样调度器
                          long blockThresholdMillis,//卡顿的阀值， 当超过这个会被认为为卡段，默认为 1s
-                         boolean stopWhenDebugging//在调试模式下是否停止 检测，默认为 true
+                         boolean stopWhenDebugging,//在调试模式下是否停止 检测，默认为 true
+                         boolean armSamplersLazily,//是否由 SamplerWatchdog 懒启动采样器
+                         long freezeThresholdMillis//卡死阈值，0 表示不检测
     ) {
         if (blockListener == null) {
             throw new IllegalArgumentException("blockListener should not be null.");
         }
         mBlockListener = blockListener;
+        mScheduler = scheduler;
         mBlockThresholdMillis = blockThresholdMillis;
+        mSampleDelay = (long) (blockThresholdMillis * 0.8f);
         mStopWhenDebugging = stopWhenDebugging;
+        mSamplerWatchdog = armSamplersLazily
+                ? new SamplerWatchdog(this, mSampleDelay)
+                : null;
+        //卡死阈值必须高于卡顿阈值，写过临时记录的消息结束时一定会回调 onBlockEvent 定稿
+        mFreezeWatchdog = freezeThresholdMillis > 0
+                ? new FreezeWatchdog(this,
+                        Math.max(freezeThresholdMillis, blockThresholdMillis + 1))
+                : null;
     }
 
     /**
      * Looper.loop() 方法中在 msg.target.dispatchMessage(msg) 前后， 也就是在 主线程执行具体代码 的前后
      * 都会调用 println 方法 ，之前输出的标识为 >>>>>  ，之后输出的标识为 <<<<<
      *
+     * This runs twice for every message on the monitored looper, so it must not allocate or
+     * log unless {@link Log#isLoggable(String, int)} enables DEBUG for {@link #TAG}.
      */
     @Override
     public void println(String x) {
         //debug 的时候不 监控
-        if (mStopWhenDebugging && Debug.isDebuggerConnected()) {
+        if (mStopWhenDebugging && mDebuggerConnected) {
             return;
         }
 
@@ -73,31 +143,137 @@ class LooperMonitor implements Printer {
             mStartThreadTimestamp = SystemClock.currentThreadTimeMillis();
             mPrintingStarted = true;
 
-            Log.e(TAG,"startDump -> "+x);
+            if (DEBUG) {
+                Log.d(TAG, "startDump -> " + x);
+            }
 
-            //在子线程中获取调用栈和CPU信息
-            startDump();
+            mDispatchSource = mMessageSources.lookup(x);
+            mDispatchStartMillis = mStartTimestamp;
+            mDispatchSequence++;
+            //懒启动模式下只写时间戳和序号，由 SamplerWatchdog 决定何时开始采样
+            if (mSamplerWatchdog == null) {
+                //在子线程中获取调用栈和CPU信息
+                startDump(mSampleDelay);
+            } else {
+                mSamplerWatchdog.onDispatchStart();
+            }
+            if (mBaselineSampler != null) {
+                mBaselineSampler.onDispatchStart();
+            }
         } else {
             //输出结束的信息
             final long endTime = System.currentTimeMillis();
             mPrintingStarted = false;
+            mDispatchSequence++;
+            mLatencyHistogram.record(endTime - mStartTimestamp);
+            MessageSource source = mDispatchSource;
+            if (source != null) {
+                source.record(endTime - mStartTimestamp);
+            }
             //判断是否超过设置的阈值
             if (isBlock(endTime)) {
                 //回调
-                notifyBlockEvent(endTime);
+                notifyBlockEvent(endTime, source);
+            }
+            if (DEBUG) {
+                Log.d(TAG, "stopDump -> " + x);
+            }
+            if (mSamplerWatchdog == null) {
+                //停止获取调用栈和CPU信息
+                stopDump();
             }
-            Log.e(TAG,"stopDump -> "+x);
-            //停止获取调用栈和CPU信息
-            stopDump();
         }
     }
 
+    /**
+     * Start polling the debugger state and the lazy-arming and freeze watchdogs if this
+     * monitor uses them, call when monitoring starts.
+     */
+    void startWatchdog() {
+        mStopped = false;
+        if (mStopWhenDebugging) {
+            mDebuggerConnected = Debug.isDebuggerConnected();
+            Handler handler = HandlerThreadFactory.getTimerThreadHandler();
+            handler.removeCallbacks(mDebuggerPoller);
+            handler.postDelayed(mDebuggerPoller, DEBUGGER_POLL_INTERVAL_MILLIS);
+        }
+        if (mSamplerWatchdog != null) {
+            mSamplerWatchdog.start();
+        }
+        if (mFreezeWatchdog != null) {
+            mFreezeWatchdog.start();
+        }
+    }
+
+    /**
+     * Stop everything {@link #startWatchdog()} started, call when monitoring stops. From now on
+     * {@link #startDump(long)} does nothing, so a dispatch already inside the printer can not take
+     * the samplers after the following {@link #stopDump()}.
+     */
+    void stopWatchdog() {
+        mStopped = true;
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(mDebuggerPoller);
+        if (mSamplerWatchdog != null) {
+            mSamplerWatchdog.stop();
+        }
+        if (mFreezeWatchdog != null) {
+            mFreezeWatchdog.stop();
+        }
+    }
+
+    /**
+     * Stop polling the debugger state, call when this monitor is thrown away, before
+     * {@link #stopDump()}.
+     */
+    void release() {
+        mStopped = true;
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(mDebuggerPoller);
+    }
+
+    /**
+     * Wake the baseline sampler when a dispatch starts, call before monitoring starts.
+     */
+    void setBaselineSampler(BaselineStackSampler baselineSampler) {
+        mBaselineSampler = baselineSampler;
+    }
+
+    LatencyHistogram getLatencyHistogram() {
+        return mLatencyHistogram;
+    }
+
+    /**
+     * Copies of the message sources seen so far, the one with the most total time first.
+     */
+    List<MessageSource> getMessageSources() {
+        return mMessageSources.getSources();
+    }
+
+    long getDispatchStartMillis() {
+        return mDispatchStartMillis;
+    }
+
+    int getDispatchSequence() {
+        return mDispatchSequence;
+    }
+
+    /**
+     * Whether this monitor currently holds the shared samplers, the scheduler may still be
+     * waiting for its first tick.
+     */
+    boolean isDumping() {
+        return mDumping.get();
+    }
+
+    boolean isPausedForDebugger() {
+        return mStopWhenDebugging && mDebuggerConnected;
+    }
+
     //判断是否超过设置的阈值
     private boolean isBlock(long endTime) {
         return endTime - mStartTimestamp > mBlockThresholdMillis;
     }
 
-    private void notifyBlockEvent(final long endTime) {
+    private void notifyBlockEvent(final long endTime, final MessageSource source) {
         final long startTime = mStartTimestamp;
         final long startThreadTime = mStartThreadTimestamp;
         final long endThreadTime = SystemClock.currentThreadTimeMillis();
@@ -105,32 +281,41 @@ class LooperMonitor implements Printer {
             @Override
             public void run() {
                 //异步线程回调 onBlockEvent
-                mBlockListener.onBlockEvent(startTime, endTime, startThreadTime, endThreadTime);
+                mBlockListener.onBlockEvent(startTime, endTime, startThreadTime, endThreadTime,
+                        source);
             }
         });
     }
 
-    private void startDump() {
-        if (null != BlockCanaryInternals.getInstance().stackSampler) {
-            //开始堆栈采样
-            BlockCanaryInternals.getInstance().stackSampler.start();
-        }
-
-        if (null != BlockCanaryInternals.getInstance().cpuSampler) {
-            //开始cpu采样
-            BlockCanaryInternals.getInstance().cpuSampler.start();
-        }
+    void notifyFreezeEvent(final long startTime, final long now) {
+        final MessageSource source = mDispatchSource;
+        HandlerThreadFactory.getWriteLogThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                mBlockListener.onFreezeEvent(startTime, now, source);
+            }
+        });
     }
 
-    private void stopDump() {
-        if (null != BlockCanaryInternals.getInstance().stackSampler) {
-            //结束堆栈采样
-            BlockCanaryInternals.getInstance().stackSampler.stop();
+    /**
+     * Start the shared samplers for this monitor, does nothing if this monitor already did or
+     * has been stopped.
+     */
+    synchronized void startDump(long delay) {
+        //开始堆栈、cpu 等采样，和 stopDump 互斥，停止以后晚到的 >>>>> 不会再占用采样器
+        if (!mStopped && mDumping.compareAndSet(false, true)) {
+            mScheduler.start(delay);
         }
+    }
 
-        if (null != BlockCanaryInternals.getInstance().cpuSampler) {
-            //结束cpu采样
-            BlockCanaryInternals.getInstance().cpuSampler.stop();
+    /**
+     * Release the shared samplers started by {@link #startDump(long)}, other monitors may keep
+     * them running.
+     */
+    synchronized void stopDump() {
+        //结束采样
+        if (mDumping.compareAndSet(true, false)) {
+            mScheduler.stop();
         }
     }
-}
\ No newline at end of file
+}
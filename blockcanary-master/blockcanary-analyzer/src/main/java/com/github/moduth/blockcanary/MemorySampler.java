@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import android.os.Build;
+import android.os.Debug;
+
+import com.github.moduth.blockcanary.internal.ProcFile;
+
+/**
+ * Dumps memory and gc state: java heap used and max, native heap, VmRSS from
+ * {@code /proc/self/status}, and gc count and time from {@link Debug#getRuntimeStat(String)}.
+ * <p>
+ * For a block it reports the peak heap usage and the gc activity between the first and the last
+ * sample inside the block window, so gc storms and heap pressure stand out.
+ * </p>
+ *
+ * 内存和 GC 采样
+ */
+class MemorySampler extends AbstractSampler {
+
+    private static final int BUFFER_SIZE = 2048;
+    private static final byte[] VM_RSS = {'V', 'm', 'R', 'S', 'S', ':'};
+    private static final String GC_COUNT = "art.gc.gc-count";
+    private static final String GC_TIME = "art.gc.gc-time";
+    private static final int MAX_SNAPSHOT_COUNT = 32;
+    //堆使用率超过这个值认为有内存压力
+    private static final int HEAP_PRESSURE_PERCENT = 85;
+    //GC 时间占窗口的比例超过这个值认为是 GC 风暴
+    private static final int GC_STORM_PERCENT = 20;
+    private static final long KB = 1024;
+
+    private final ProcFile mStatusFile = new ProcFile("/proc/self/status", BUFFER_SIZE);
+
+    private final long[] mTimes = new long[MAX_SNAPSHOT_COUNT];
+    //以下单位都是 KB
+    private final long[] mHeapUsed = new long[MAX_SNAPSHOT_COUNT];
+    private final long[] mHeapMax = new long[MAX_SNAPSHOT_COUNT];
+    private final long[] mNativeHeap = new long[MAX_SNAPSHOT_COUNT];
+    private final long[] mRss = new long[MAX_SNAPSHOT_COUNT];
+    //读不到时为 -1
+    private final long[] mGcCounts = new long[MAX_SNAPSHOT_COUNT];
+    private final long[] mGcTimes = new long[MAX_SNAPSHOT_COUNT];
+    private int mSnapshotCount = 0;
+
+    public MemorySampler(long sampleInterval) {
+        super(sampleInterval);
+    }
+
+    @Override
+    protected void doSample(long now) {
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = (runtime.totalMemory() - runtime.freeMemory()) / KB;
+        long heapMax = runtime.maxMemory() / KB;
+        long nativeHeap = Debug.getNativeHeapAllocatedSize() / KB;
+        long rss = mStatusFile.read() && mStatusFile.seekLine(VM_RSS) ? mStatusFile.nextLong() : 0;
+        long gcCount = -1;
+        long gcTime = -1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            gcCount = parseStat(Debug.getRuntimeStat(GC_COUNT));
+            gcTime = parseStat(Debug.getRuntimeStat(GC_TIME));
+        }
+
+        synchronized (this) {
+            int index = mSnapshotCount % MAX_SNAPSHOT_COUNT;
+            mTimes[index] = now;
+            mHeapUsed[index] = heapUsed;
+            mHeapMax[index] = heapMax;
+            mNativeHeap[index] = nativeHeap;
+            mRss[index] = rss;
+            mGcCounts[index] = gcCount;
+            mGcTimes[index] = gcTime;
+            mSnapshotCount++;
+        }
+    }
+
+    /**
+     * Memory state over the window, like
+     * "heap:200/256MB(78%) native:40MB rss:310MB gc:12 in 420ms gc-storm".
+     *
+     * @return memory string, or empty string if no snapshot falls inside the window
+     */
+    public String getMemoryInfo(long start, long end) {
+        synchronized (this) {
+            int first = -1;
+            int last = -1;
+            long peakHeap = 0;
+            long heapMax = 0;
+            long peakNative = 0;
+            long peakRss = 0;
+            for (int i = Math.max(0, mSnapshotCount - MAX_SNAPSHOT_COUNT); i < mSnapshotCount; i++) {
+                int index = i % MAX_SNAPSHOT_COUNT;
+                if (mTimes[index] < start || mTimes[index] > end) {
+                    continue;
+                }
+                if (first < 0) {
+                    first = index;
+                }
+                last = index;
+                if (mHeapUsed[index] >= peakHeap) {
+                    peakHeap = mHeapUsed[index];
+                    heapMax = mHeapMax[index];
+                }
+                peakNative = Math.max(peakNative, mNativeHeap[index]);
+                peakRss = Math.max(peakRss, mRss[index]);
+            }
+            if (first < 0) {
+                return "";
+            }
+
+            StringBuilder sb = new StringBuilder();
+            long heapPercent = heapMax > 0 ? peakHeap * 100 / heapMax : 0;
+            sb.append("heap:").append(peakHeap / KB).append('/').append(heapMax / KB)
+                    .append("MB(").append(heapPercent).append("%)")
+                    .append(" native:").append(peakNative / KB).append("MB");
+            if (peakRss > 0) {
+                sb.append(" rss:").append(peakRss / KB).append("MB");
+            }
+            if (first != last && mGcCounts[first] >= 0 && mGcCounts[last] >= 0) {
+                long gcTime = mGcTimes[last] - mGcTimes[first];
+                sb.append(" gc:").append(mGcCounts[last] - mGcCounts[first])
+                        .append(" in ").append(gcTime).append("ms");
+                long window = mTimes[last] - mTimes[first];
+                if (window > 0 && gcTime * 100 >= window * GC_STORM_PERCENT) {
+                    sb.append(" gc-storm");
+                }
+            }
+            if (heapPercent >= HEAP_PRESSURE_PERCENT) {
+                sb.append(" heap-pressure");
+            }
+            return sb.toString();
+        }
+    }
+
+    private static long parseStat(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+/**
+ * Where a looper message came from: the handler class, the callback class and {@code what},
+ * with the dispatch count, total and max time of the messages from this source.
+ * <p>
+ * One instance exists per distinct source of a looper, statistics are written by the looper
+ * thread only.
+ * </p>
+ */
+public final class MessageSource {
+
+    private final String mHandlerClass;
+    private final String mCallbackClass;
+    private final int mWhat;
+    private volatile long mCount;
+    private volatile long mTotalMillis;
+    private volatile long mMaxMillis;
+
+    MessageSource(String handlerClass, String callbackClass, int what) {
+        mHandlerClass = handlerClass;
+        mCallbackClass = callbackClass;
+        mWhat = what;
+    }
+
+    private MessageSource(MessageSource source) {
+        this(source.mHandlerClass, source.mCallbackClass, source.mWhat);
+        mCount = source.mCount;
+        mTotalMillis = source.mTotalMillis;
+        mMaxMillis = source.mMaxMillis;
+    }
+
+    /**
+     * Record one dispatch, call on the looper thread only.
+     */
+    void record(long millis) {
+        mCount = mCount + 1;
+        mTotalMillis = mTotalMillis + millis;
+        if (millis > mMaxMillis) {
+            mMaxMillis = millis;
+        }
+    }
+
+    /**
+     * Copy with the statistics frozen, so that copies can be sorted.
+     */
+    MessageSource copy() {
+        return new MessageSource(this);
+    }
+
+    /**
+     * @return handler class name, or the handler's toString() if it overrides it
+     */
+    public String getHandlerClass() {
+        return mHandlerClass;
+    }
+
+    /**
+     * @return callback class name, null for messages handled by handleMessage
+     */
+    public String getCallbackClass() {
+        return mCallbackClass;
+    }
+
+    public int getWhat() {
+        return mWhat;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getTotalMillis() {
+        return mTotalMillis;
+    }
+
+    public long getMaxMillis() {
+        return mMaxMillis;
+    }
+
+    /**
+     * Like "android.app.ActivityThread$H callback:null what:159 count:12 total:3400ms
+     * max:2500ms".
+     */
+    @Override
+    public String toString() {
+        return mHandlerClass + " callback:" + mCallbackClass + " what:" + mWhat
+                + " count:" + mCount + " total:" + mTotalMillis + "ms max:" + mMaxMillis + "ms";
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Interns the {@link MessageSource} of Looper log lines like
+ * {@code >>>>> Dispatching to Handler (android.app.ActivityThread$H) {b1d0b5c} null: 159}.
+ * <p>
+ * Lines are parsed in place with {@link String#charAt(int)} and
+ * {@link String#regionMatches(int, String, int, int)} and looked up in an open addressing
+ * table, so a source seen before costs no allocation. New sources allocate their strings once.
+ * Once {@link #MAX_SOURCES} sources are known, new ones are counted as "other".
+ * </p>
+ */
+class MessageSourceTable {
+
+    private static final String DISPATCH_PREFIX = ">>>>> Dispatching to ";
+    private static final String HANDLER_PREFIX = "Handler (";
+    private static final String NULL_CALLBACK = "null";
+    private static final int MAX_SOURCES = 256;
+    //开放寻址表的大小，保持一半以上是空的
+    private static final int TABLE_SIZE = MAX_SOURCES * 2;
+    //类名的区别多在末尾，只对末尾这么多个字符求 hash，命中后再完整比较
+    private static final int HASHED_TAIL = 12;
+
+    //只在 Looper 线程写，mSize 用 volatile 发布给读线程
+    private final MessageSource[] mTable = new MessageSource[TABLE_SIZE];
+    private final MessageSource[] mSources = new MessageSource[MAX_SOURCES];
+    private volatile int mSize = 0;
+    //表满以后的新来源都记在这里
+    private final MessageSource mOther = new MessageSource("other", null, 0);
+
+    //以下是解析结果，只在 Looper 线程使用
+    private int mHandlerStart;
+    private int mHandlerEnd;
+    private int mCallbackStart;
+    private int mCallbackEnd;
+    private int mWhat;
+
+    /**
+     * Find or add the source of a dispatch line, call on the looper thread only.
+     */
+    MessageSource lookup(String line) {
+        parse(line);
+        int handlerLength = mHandlerEnd - mHandlerStart;
+        int callbackLength = mCallbackEnd - mCallbackStart;
+
+        int hash = 31 * (31 * mWhat + handlerLength) + callbackLength;
+        for (int i = Math.max(mHandlerStart, mHandlerEnd - HASHED_TAIL); i < mHandlerEnd; i++) {
+            hash = 31 * hash + line.charAt(i);
+        }
+        for (int i = Math.max(mCallbackStart, mCallbackEnd - HASHED_TAIL); i < mCallbackEnd; i++) {
+            hash = 31 * hash + line.charAt(i);
+        }
+        hash ^= hash >>> 16;
+
+        int index = hash & (TABLE_SIZE - 1);
+        for (MessageSource source = mTable[index]; source != null;
+             source = mTable[index = (index + 1) & (TABLE_SIZE - 1)]) {
+            String callback = source.getCallbackClass();
+            if (source.getWhat() == mWhat
+                    && source.getHandlerClass().length() == handlerLength
+                    && line.regionMatches(mHandlerStart, source.getHandlerClass(), 0, handlerLength)
+                    && (callback == null ? callbackLength == 0
+                    : callback.length() == callbackLength
+                    && line.regionMatches(mCallbackStart, callback, 0, callbackLength))) {
+                return source;
+            }
+        }
+
+        if (mSize >= MAX_SOURCES) {
+            return mOther;
+        }
+        MessageSource source = new MessageSource(line.substring(mHandlerStart, mHandlerEnd),
+                callbackLength == 0 ? null : line.substring(mCallbackStart, mCallbackEnd), mWhat);
+        mTable[index] = source;
+        mSources[mSize] = source;
+        mSize++;
+        return source;
+    }
+
+    /**
+     * Copies of the known sources, the one with the most total time first.
+     */
+    List<MessageSource> getSources() {
+        int size = mSize;
+        List<MessageSource> sources = new ArrayList<>(size + 1);
+        for (int i = 0; i < size; i++) {
+            sources.add(mSources[i].copy());
+        }
+        if (mOther.getCount() > 0) {
+            sources.add(mOther.copy());
+        }
+        Collections.sort(sources, new Comparator<MessageSource>() {
+            @Override
+            public int compare(MessageSource lhs, MessageSource rhs) {
+                long diff = rhs.getTotalMillis() - lhs.getTotalMillis();
+                return diff > 0 ? 1 : diff < 0 ? -1 : 0;
+            }
+        });
+        return sources;
+    }
+
+    /**
+     * Find the ranges of the handler class and the callback class and parse what. The line
+     * is {@code ">>>>> Dispatching to " + target + " " + callback + ": " + what}, parsed from
+     * the end since a handler may override toString().
+     */
+    private void parse(String line) {
+        int start = line.startsWith(DISPATCH_PREFIX) ? DISPATCH_PREFIX.length() : 0;
+        int colon = line.lastIndexOf(": ");
+        if (colon < start) {
+            mHandlerStart = start;
+            mHandlerEnd = line.length();
+            mCallbackStart = mCallbackEnd = 0;
+            mWhat = 0;
+            return;
+        }
+
+        int what = 0;
+        boolean negative = false;
+        for (int i = colon + 2; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '-') {
+                negative = true;
+            } else if (c >= '0' && c <= '9') {
+                what = what * 10 + (c - '0');
+            } else {
+                break;
+            }
+        }
+        mWhat = negative ? -what : what;
+
+        //callback 是 "类名@hash" 或 "null"，不含空格
+        int space = line.lastIndexOf(' ', colon - 1);
+        if (space < start) {
+            mHandlerStart = start;
+            mHandlerEnd = colon;
+            mCallbackStart = mCallbackEnd = 0;
+            return;
+        }
+        mCallbackStart = space + 1;
+        mCallbackEnd = colon;
+        int at = line.indexOf('@', mCallbackStart);
+        if (at >= 0 && at < mCallbackEnd) {
+            mCallbackEnd = at;
+        }
+        if (mCallbackEnd - mCallbackStart == NULL_CALLBACK.length()
+                && line.regionMatches(mCallbackStart, NULL_CALLBACK, 0, NULL_CALLBACK.length())) {
+            mCallbackStart = mCallbackEnd = 0;
+        }
+
+        //默认的 Handler.toString() 是 "Handler (类名) {hash}"
+        mHandlerStart = start;
+        mHandlerEnd = space;
+        if (line.startsWith(HANDLER_PREFIX, start)) {
+            int close = line.indexOf(')', start);
+            if (close >= 0 && close < mHandlerEnd) {
+                mHandlerStart = start + HANDLER_PREFIX.length();
+                mHandlerEnd = close;
+            }
+        }
+    }
+}
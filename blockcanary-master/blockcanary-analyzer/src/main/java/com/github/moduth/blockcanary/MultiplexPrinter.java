@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import android.os.Looper;
+import android.util.Log;
+import android.util.Printer;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link Printer} shared by everyone observing a looper's message logging.
+ * <p>
+ * {@link Looper#setMessageLogging(Printer)} only holds one printer, so installing one silently
+ * drops the other. This printer keeps the printer installed before it and forwards every line
+ * to it and then to all added printers, in the order they were added.
+ * </p>
+ * <p>
+ * Printers are kept in a copy-on-write array, so {@link #println(String)} does not allocate or
+ * lock on the looper thread.
+ * </p>
+ */
+public final class MultiplexPrinter implements Printer {
+
+    private static final String TAG = "MultiplexPrinter";
+    private static final Printer[] EMPTY = new Printer[0];
+    //读不到 mLogging 时的占位
+    private static final Printer UNKNOWN = new Printer() {
+        @Override
+        public void println(String x) {
+        }
+    };
+    private static final Map<Looper, MultiplexPrinter> sPrinters = new HashMap<>();
+    //Looper 的 mLogging 字段，拿不到时为 null
+    private static Field sLoggingField;
+    private static boolean sLoggingFieldResolved = false;
+
+    //安装前已有的 Printer
+    private final Printer mPrevious;
+    private volatile Printer[] mPrinters = EMPTY;
+
+    private MultiplexPrinter(Printer previous) {
+        mPrevious = previous;
+    }
+
+    /**
+     * Add a printer to the looper's message logging, installing the multiplexer if it is not
+     * installed. Adding the same printer twice does nothing.
+     *
+     * @param looper  looper to observe
+     * @param printer printer to receive the dispatch lines
+     */
+    public static void add(Looper looper, Printer printer) {
+        synchronized (sPrinters) {
+            MultiplexPrinter multiplexer = sPrinters.get(looper);
+            Printer current = getMessageLogging(looper);
+            //被别人替换了就重新安装，把替换者接在前面
+            if (multiplexer == null || (current != multiplexer && current != UNKNOWN)) {
+                multiplexer = new MultiplexPrinter(current == UNKNOWN ? null : current);
+                if (current == UNKNOWN) {
+                    Log.w(TAG, "Unable to read the installed printer, it will be replaced");
+                }
+                MultiplexPrinter old = sPrinters.put(looper, multiplexer);
+                if (old != null) {
+                    //替换者可能接着旧的，旧的只转发给它之前的 Printer，避免重复
+                    multiplexer.mPrinters = old.mPrinters;
+                    old.mPrinters = EMPTY;
+                }
+                looper.setMessageLogging(multiplexer);
+            }
+            multiplexer.addPrinter(printer);
+        }
+    }
+
+    /**
+     * Remove a printer added by {@link #add(Looper, Printer)}. The previous printer is
+     * restored when the last one is removed, unless someone installed another printer since.
+     */
+    public static void remove(Looper looper, Printer printer) {
+        synchronized (sPrinters) {
+            MultiplexPrinter multiplexer = sPrinters.get(looper);
+            if (multiplexer == null || !multiplexer.removePrinter(printer)
+                    || multiplexer.mPrinters.length > 0) {
+                return;
+            }
+            sPrinters.remove(looper);
+            Printer current = getMessageLogging(looper);
+            //后来装的 Printer 可能接着我们，保留转发，不去动它
+            if (current == multiplexer || current == UNKNOWN) {
+                looper.setMessageLogging(multiplexer.mPrevious);
+            }
+        }
+    }
+
+    @Override
+    public void println(String x) {
+        Printer previous = mPrevious;
+        if (previous != null) {
+            previous.println(x);
+        }
+        //不用迭代器，避免分配
+        Printer[] printers = mPrinters;
+        for (int i = 0; i < printers.length; i++) {
+            printers[i].println(x);
+        }
+    }
+
+    private void addPrinter(Printer printer) {
+        Printer[] printers = mPrinters;
+        for (Printer p : printers) {
+            if (p == printer) {
+                return;
+            }
+        }
+        Printer[] newPrinters = new Printer[printers.length + 1];
+        System.arraycopy(printers, 0, newPrinters, 0, printers.length);
+        newPrinters[printers.length] = printer;
+        mPrinters = newPrinters;
+    }
+
+    private boolean removePrinter(Printer printer) {
+        Printer[] printers = mPrinters;
+        int index = -1;
+        for (int i = 0; i < printers.length; i++) {
+            if (printers[i] == printer) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return false;
+        }
+        Printer[] newPrinters = new Printer[printers.length - 1];
+        System.arraycopy(printers, 0, newPrinters, 0, index);
+        System.arraycopy(printers, index + 1, newPrinters, index, newPrinters.length - index);
+        mPrinters = newPrinters;
+        return true;
+    }
+
+    /**
+     * Read the printer currently installed on the looper, {@link #UNKNOWN} if the hidden field
+     * is not accessible.
+     */
+    private static Printer getMessageLogging(Looper looper) {
+        if (!sLoggingFieldResolved) {
+            sLoggingFieldResolved = true;
+            try {
+                sLoggingField = Looper.class.getDeclaredField("mLogging");
+                sLoggingField.setAccessible(true);
+            } catch (Throwable t) {
+                Log.w(TAG, "Looper.mLogging is not accessible", t);
+            }
+        }
+        if (sLoggingField == null) {
+            return UNKNOWN;
+        }
+        try {
+            return (Printer) sLoggingField.get(looper);
+        } catch (Throwable t) {
+            return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import com.github.moduth.blockcanary.internal.ProcFile;
+
+/**
+ * Dumps Pressure Stall Information from {@code /proc/pressure/{cpu,io,memory}} and the load
+ * average with running/total task counts from {@code /proc/loadavg}.
+ * <p>
+ * Instead of the kernel's avg10/avg60 averages, which lag behind a one second block, the
+ * cumulative {@code total=} stall time is sampled and turned into the stalled percentage of the
+ * block window. Kernels without PSI (before 4.20, or built without it) simply report the load
+ * average; when neither is readable the sampler reports nothing.
+ * </p>
+ *
+ * 系统压力采样（PSI 和 loadavg），文件不存在时自动降级
+ */
+class PressureSampler extends AbstractSampler {
+
+    private static final int BUFFER_SIZE = 256;
+    private static final int MAX_SNAPSHOT_COUNT = 32;
+    private static final String[] RESOURCES = {"cpu", "io", "memory"};
+    private static final byte[] SOME = {'s', 'o', 'm', 'e'};
+    private static final byte[] FULL = {'f', 'u', 'l', 'l'};
+    private static final byte[] TOTAL = {'t', 'o', 't', 'a', 'l', '='};
+    //"some avg10=0.00 avg60=0.00 avg300=0.00 total=0"，标签之后 total 之前有 3 个字段
+    private static final int FIELDS_BEFORE_TOTAL = 3;
+    //loadavg 保留两位小数
+    private static final int LOAD_DECIMALS = 2;
+    private static final int LOAD_SCALE = 100;
+
+    private final ProcFile[] mPressureFiles = new ProcFile[RESOURCES.length];
+    private final ProcFile mLoadAvgFile;
+
+    private final long[] mSnapshotTimes = new long[MAX_SNAPSHOT_COUNT];
+    //每个资源的 some 和 full 累计停顿时间，单位微秒，读不到时为 -1
+    private final long[][] mStallMicros = new long[MAX_SNAPSHOT_COUNT][RESOURCES.length * 2];
+    //1/5/15 分钟 load，放大了 LOAD_SCALE 倍，读不到时第一个为 -1
+    private final long[][] mLoads = new long[MAX_SNAPSHOT_COUNT][3];
+    private final int[] mRunningTasks = new int[MAX_SNAPSHOT_COUNT];
+    private final int[] mTotalTasks = new int[MAX_SNAPSHOT_COUNT];
+    private int mSnapshotCount = 0;
+
+    public PressureSampler(long sampleInterval) {
+        this(sampleInterval, "/proc/pressure", "/proc/loadavg");
+    }
+
+    /**
+     * @param pressureDir directory of the cpu, io and memory pressure files
+     * @param loadAvgPath path of the loadavg file
+     */
+    PressureSampler(long sampleInterval, String pressureDir, String loadAvgPath) {
+        super(sampleInterval);
+        for (int i = 0; i < RESOURCES.length; i++) {
+            mPressureFiles[i] = new ProcFile(pressureDir + "/" + RESOURCES[i], BUFFER_SIZE);
+        }
+        mLoadAvgFile = new ProcFile(loadAvgPath, BUFFER_SIZE);
+    }
+
+    @Override
+    protected void doSample(long now) {
+        synchronized (this) {
+            int index = mSnapshotCount % MAX_SNAPSHOT_COUNT;
+            long[] stalls = mStallMicros[index];
+            for (int i = 0; i < RESOURCES.length; i++) {
+                ProcFile file = mPressureFiles[i];
+                if (!file.read()) {
+                    stalls[i * 2] = -1;
+                    stalls[i * 2 + 1] = -1;
+                    continue;
+                }
+                stalls[i * 2] = file.seekLine(SOME) ? readTotal(file) : -1;
+                //cpu 的 full 行在 5.13 之前的内核上没有
+                stalls[i * 2 + 1] = file.seekLine(FULL) ? readTotal(file) : -1;
+            }
+
+            long[] loads = mLoads[index];
+            if (mLoadAvgFile.read()) {
+                //"0.50 0.40 0.30 2/345 6789"
+                for (int i = 0; i < loads.length; i++) {
+                    loads[i] = mLoadAvgFile.nextDecimal(LOAD_DECIMALS);
+                }
+                mRunningTasks[index] = (int) mLoadAvgFile.nextLong((byte) '/');
+                mTotalTasks[index] = (int) mLoadAvgFile.nextLong();
+            } else {
+                loads[0] = -1;
+            }
+            mSnapshotTimes[index] = now;
+            mSnapshotCount++;
+        }
+    }
+
+    /**
+     * System pressure over the window, like
+     * "cpu some:35% io some:12% full:4% memory some:0% full:0% load:6.20/4.10/3.00 tasks:5/1024".
+     * Stall percentages need two snapshots in the window, load comes from the last one.
+     *
+     * @return pressure string, or empty string if nothing could be read in the window
+     */
+    public String getPressureInfo(long start, long end) {
+        synchronized (this) {
+            int first = -1;
+            int last = -1;
+            for (int i = Math.max(0, mSnapshotCount - MAX_SNAPSHOT_COUNT); i < mSnapshotCount; i++) {
+                int index = i % MAX_SNAPSHOT_COUNT;
+                if (mSnapshotTimes[index] >= start && mSnapshotTimes[index] <= end) {
+                    if (first < 0) {
+                        first = index;
+                    }
+                    last = index;
+                }
+            }
+            if (first < 0) {
+                return "";
+            }
+
+            StringBuilder sb = new StringBuilder();
+            long window = mSnapshotTimes[last] - mSnapshotTimes[first];
+            if (window > 0) {
+                long[] from = mStallMicros[first];
+                long[] to = mStallMicros[last];
+                for (int i = 0; i < RESOURCES.length; i++) {
+                    boolean hasSome = from[i * 2] >= 0 && to[i * 2] >= 0;
+                    boolean hasFull = from[i * 2 + 1] >= 0 && to[i * 2 + 1] >= 0;
+                    if (!hasSome && !hasFull) {
+                        continue;
+                    }
+                    sb.append(RESOURCES[i]);
+                    if (hasSome) {
+                        sb.append(" some:").append(percent(to[i * 2] - from[i * 2], window))
+                                .append('%');
+                    }
+                    if (hasFull) {
+                        sb.append(" full:")
+                                .append(percent(to[i * 2 + 1] - from[i * 2 + 1], window))
+                                .append('%');
+                    }
+                    sb.append(' ');
+                }
+            }
+
+            long[] loads = mLoads[last];
+            if (loads[0] >= 0) {
+                sb.append("load:");
+                for (int i = 0; i < loads.length; i++) {
+                    if (i > 0) {
+                        sb.append('/');
+                    }
+                    appendLoad(sb, loads[i]);
+                }
+                sb.append(" tasks:").append(mRunningTasks[last])
+                        .append('/').append(mTotalTasks[last]);
+            }
+            return sb.toString().trim();
+        }
+    }
+
+    private static long readTotal(ProcFile file) {
+        file.skipFields(FIELDS_BEFORE_TOTAL);
+        file.skipSpaces();
+        if (!file.startsWith(TOTAL)) {
+            return -1;
+        }
+        file.skip(TOTAL.length);
+        return file.nextLong();
+    }
+
+    private static long percent(long stallMicros, long windowMillis) {
+        return Math.min(100, Math.max(0, stallMicros / 10 / windowMillis));
+    }
+
+    private static void appendLoad(StringBuilder sb, long load) {
+        long fraction = load % LOAD_SCALE;
+        sb.append(load / LOAD_SCALE).append('.');
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+}
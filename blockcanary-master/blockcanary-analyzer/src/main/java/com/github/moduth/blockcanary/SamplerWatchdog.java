@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Periodic checker on the timer thread which arms samplers only for dispatches that have
+ * already run longer than the sample delay.
+ * <p>
+ * The monitored looper just publishes a dispatch start time and sequence number, so nothing is
+ * posted to or removed from the timer handler for ordinary short messages. When no message was
+ * dispatched for a whole check interval the checker parks, and the next dispatch wakes it with
+ * a single post.
+ * </p>
+ *
+ * 懒启动模式：主线程只写时间戳和序号，由 BlockCanary-loop 线程定时检查是否需要开始采样
+ */
+final class SamplerWatchdog implements Runnable {
+
+    //每个采样延时内检查的次数
+    private static final int CHECKS_PER_DELAY = 4;
+    private static final long MIN_CHECK_INTERVAL_MILLIS = 10;
+
+    private final LooperMonitor mMonitor;
+    private final long mSampleDelay;
+    private final long mCheckInterval;
+    //空闲时挂起，由 Looper 线程在下一条消息开始时唤醒
+    private final AtomicBoolean mParked = new AtomicBoolean(false);
+    private volatile boolean mRunning = false;
+
+    //以下字段只在 BlockCanary-loop 线程访问
+    private boolean mArmed = false;
+    private int mArmedSequence = 0;
+    private int mLastSequence = 0;
+
+    SamplerWatchdog(LooperMonitor monitor, long sampleDelay) {
+        mMonitor = monitor;
+        mSampleDelay = sampleDelay;
+        mCheckInterval = Math.max(MIN_CHECK_INTERVAL_MILLIS, sampleDelay / CHECKS_PER_DELAY);
+    }
+
+    void start() {
+        mRunning = true;
+        mParked.set(false);
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(this);
+        HandlerThreadFactory.getTimerThreadHandler().post(this);
+    }
+
+    void stop() {
+        mRunning = false;
+        mParked.set(false);
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(this);
+        HandlerThreadFactory.getTimerThreadHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                disarm();
+            }
+        });
+    }
+
+    /**
+     * Wake the checker if it is parked, called by the looper when a dispatch starts.
+     */
+    void onDispatchStart() {
+        //平时只是一次 volatile 读，挂起以后的第一条消息才 post
+        if (mParked.get() && mParked.compareAndSet(true, false)) {
+            HandlerThreadFactory.getTimerThreadHandler().post(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        if (!mRunning) {
+            return;
+        }
+        int sequence = mMonitor.getDispatchSequence();
+        int lastSequence = mLastSequence;
+        mLastSequence = sequence;
+        long delay = mCheckInterval;
+
+        //上次武装的那条消息已经结束了
+        if (mArmed && sequence != mArmedSequence) {
+            disarm();
+        }
+
+        if (mMonitor.isPausedForDebugger()) {
+            //调试器连着时结束的 println 会被跳过，序号停在奇数，不能武装
+            disarm();
+        } else if ((sequence & 1) == 1) {
+            //奇数序号表示主线程正在分发消息
+            if (!mArmed) {
+                long elapsed = System.currentTimeMillis() - mMonitor.getDispatchStartMillis();
+                if (elapsed >= mSampleDelay) {
+                    mArmed = true;
+                    mArmedSequence = sequence;
+                    mMonitor.startDump(0);
+                } else {
+                    delay = Math.min(delay, mSampleDelay - elapsed);
+                }
+            }
+        } else if (sequence == lastSequence) {
+            //一整个检查间隔都没有消息，挂起
+            mParked.set(true);
+            //挂起的同时开始了一条消息，Looper 线程可能没看到挂起标记，自己接着检查
+            if (mMonitor.getDispatchSequence() == sequence || !mParked.compareAndSet(true, false)) {
+                return;
+            }
+        }
+
+        HandlerThreadFactory.getTimerThreadHandler().postDelayed(this, delay);
+    }
+
+    private void disarm() {
+        if (mArmed) {
+            mArmed = false;
+            mMonitor.stopDump();
+        }
+    }
+}
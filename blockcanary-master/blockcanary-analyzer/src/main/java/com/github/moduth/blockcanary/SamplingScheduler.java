@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single tick source for all samplers.
+ * <p>
+ * One runnable is posted on the {@code BlockCanary-loop} thread per tick. Every tick takes one
+ * timestamp and passes it to the registered samplers in registration order, so stack, cpu and
+ * other samples of the same tick line up exactly and the timer thread wakes up once per
+ * interval no matter how many samplers are enabled. The tick interval is the smallest interval
+ * among registered samplers.
+ * </p>
+ * <p>
+ * Several clients, one per monitored looper, can start and stop the scheduler; it keeps
+ * ticking while at least one of them is sampling, so monitoring more loopers does not add
+ * timer thread wakeups.
+ * </p>
+ * <p>
+ * Ticks run at a fixed rate: each one is posted for an absolute deadline on the
+ * {@link SystemClock#uptimeMillis()} clock, so sampling cost and handler latency do not add up
+ * to drift. A tick that runs late records how late it was (sample lag), which also tells how
+ * busy the cpu was. When deadlines have been missed, the scheduler either catches up by running
+ * the missed ticks back to back (at most {@link #MAX_CATCH_UP_TICKS}) or skips them.
+ * </p>
+ * <p>
+ * With a burst interval configured, sampling escalates instead of running flat: after the
+ * initial delay the first ticks of a session run at the burst interval, then the interval grows
+ * geometrically by the backoff factor up to the regular interval, so short blocks get dense
+ * samples and multi-second freezes a bounded number of them.
+ * </p>
+ *
+ * 统一的采样调度器，所有采样器共用一个 tick 和同一个时间戳
+ */
+final class SamplingScheduler {
+
+    //落后超过这么多个 tick 时即使是追赶模式也直接跳过
+    private static final int MAX_CATCH_UP_TICKS = 3;
+    private static final int MAX_TICK_RECORDS = 64;
+
+    private final boolean mCatchUp;
+    //密集采样阶段的间隔和次数，间隔为 0 表示不升级，一直按 mInterval 采样
+    private final long mBurstInterval;
+    private final int mBurstCount;
+    private final float mBackoffFactor;
+    //注册时整体替换，tick 中直接遍历不用加锁
+    private volatile AbstractSampler[] mSamplers = new AbstractSampler[0];
+    private volatile long mInterval = Long.MAX_VALUE;
+    private final AtomicBoolean mRunning = new AtomicBoolean(false);
+    //正在采样的客户端数，降到 0 才真正停止
+    private int mClientCount = 0;
+    //新一轮采样的第一个 tick 需要先调用各采样器的 onStart
+    private volatile boolean mSessionStarted = false;
+    //每次开始和停止都加一，tick 据此判断投递它的那一轮是否还在，只在持有锁时访问
+    private int mGeneration = 0;
+    //下一个 tick 的计划时间，uptimeMillis 时钟
+    private volatile long mNextDeadline;
+    //本轮采样已经过去的 tick 数，只在 BlockCanary-loop 线程访问
+    private int mSessionTicks = 0;
+
+    //每个 tick 的实际时间、延迟和之后跳过的 tick 数，用于报告采样延迟
+    private final long[] mTickTimes = new long[MAX_TICK_RECORDS];
+    private final long[] mTickLags = new long[MAX_TICK_RECORDS];
+    private final long[] mTickSkips = new long[MAX_TICK_RECORDS];
+    private int mTickCount = 0;
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            int generation;
+            boolean sessionStart;
+            synchronized (SamplingScheduler.this) {
+                if (!mRunning.get()) {
+                    return;
+                }
+                generation = mGeneration;
+                sessionStart = !mSessionStarted;
+                mSessionStarted = true;
+            }
+            long deadline = tick(mNextDeadline, sessionStart);
+            synchronized (SamplingScheduler.this) {
+                //tick 期间停止了，或者停止后又开始了新的一轮，不能再按旧的节奏投递
+                if (generation != mGeneration) {
+                    return;
+                }
+                mNextDeadline = deadline;
+                //start() 可能和本次 tick 并发又投递了一次，先去重
+                HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(mTick);
+                HandlerThreadFactory.getTimerThreadHandler().postAtTime(mTick, deadline);
+            }
+        }
+    };
+
+    /**
+     * @param catchUp       true to run missed ticks back to back, false to skip them
+     * @param burstInterval interval of the first ticks of a session (in millis), 0 to always
+     *                      use the regular interval
+     * @param burstCount    number of ticks at the burst interval
+     * @param backoffFactor growth of the interval per tick after the burst
+     */
+    SamplingScheduler(boolean catchUp, long burstInterval, int burstCount, float backoffFactor) {
+        mCatchUp = catchUp;
+        mBurstInterval = Math.max(0, burstInterval);
+        mBurstCount = Math.max(0, burstCount);
+        mBackoffFactor = Math.max(1f, backoffFactor);
+    }
+
+    /**
+     * Register a sampler, it is sampled after every previously registered one.
+     */
+    synchronized void register(AbstractSampler sampler) {
+        AbstractSampler[] samplers = new AbstractSampler[mSamplers.length + 1];
+        System.arraycopy(mSamplers, 0, samplers, 0, mSamplers.length);
+        samplers[mSamplers.length] = sampler;
+        mInterval = Math.min(mInterval, sampler.getSampleInterval());
+        mSamplers = samplers;
+    }
+
+    /**
+     * Unregister a sampler registered by {@link #register(AbstractSampler)}.
+     */
+    synchronized void unregister(AbstractSampler sampler) {
+        int index = -1;
+        for (int i = 0; i < mSamplers.length; i++) {
+            if (mSamplers[i] == sampler) {
+                index = i;
+                break;
+            }
+        }
+        if (index < 0) {
+            return;
+        }
+        AbstractSampler[] samplers = new AbstractSampler[mSamplers.length - 1];
+        System.arraycopy(mSamplers, 0, samplers, 0, index);
+        System.arraycopy(mSamplers, index + 1, samplers, index, samplers.length - index);
+        long interval = Long.MAX_VALUE;
+        for (AbstractSampler remaining : samplers) {
+            interval = Math.min(interval, remaining.getSampleInterval());
+        }
+        mInterval = interval;
+        mSamplers = samplers;
+    }
+
+    /**
+     * Start ticking after the given delay for one more client. If another client already
+     * started the scheduler, the first tick is only moved earlier when needed.
+     *
+     * @param delay delay before the first tick (in millis)
+     */
+    synchronized void start(long delay) {
+        long deadline = SystemClock.uptimeMillis() + delay;
+        if (mClientCount++ > 0) {
+            if (!mSessionStarted && deadline < mNextDeadline) {
+                mNextDeadline = deadline;
+                HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(mTick);
+                HandlerThreadFactory.getTimerThreadHandler().postAtTime(mTick, deadline);
+            }
+            return;
+        }
+        mGeneration++;
+        mRunning.set(true);
+        mSessionStarted = false;
+        mNextDeadline = deadline;
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(mTick);
+        //延时的原因是避免非耗时消息也去采样浪费资源，消息在延时之内结束的话 stop() 会把 mTick 移除掉
+        HandlerThreadFactory.getTimerThreadHandler().postAtTime(mTick, mNextDeadline);
+    }
+
+    /**
+     * @return whether a session is running and has already ticked
+     */
+    boolean isSampling() {
+        return mRunning.get() && mSessionStarted;
+    }
+
+    /**
+     * Stop ticking for one client, the scheduler stops when no client is left. The samplers
+     * are then stopped on the timer thread, after any tick already running.
+     */
+    synchronized void stop() {
+        if (mClientCount == 0 || --mClientCount > 0) {
+            return;
+        }
+        mGeneration++;
+        mRunning.set(false);
+        HandlerThreadFactory.getTimerThreadHandler().removeCallbacks(mTick);
+        if (mSessionStarted) {
+            mSessionStarted = false;
+            final AbstractSampler[] samplers = mSamplers;
+            //和 doSample 在同一个线程，不会和正在进行的 tick 交错
+            HandlerThreadFactory.getTimerThreadHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    for (AbstractSampler sampler : samplers) {
+                        sampler.onStop();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Sample lag of the ticks inside the window, like "ticks:12 lag avg:3ms max:40ms skipped:1".
+     *
+     * @return lag string, or empty string if no tick falls inside the window
+     */
+    String getSampleLagInfo(long start, long end) {
+        synchronized (this) {
+            int ticks = 0;
+            long lagSum = 0;
+            long lagMax = 0;
+            long skipped = 0;
+            for (int i = Math.max(0, mTickCount - MAX_TICK_RECORDS); i < mTickCount; i++) {
+                int index = i % MAX_TICK_RECORDS;
+                if (mTickTimes[index] < start || mTickTimes[index] > end) {
+                    continue;
+                }
+                ticks++;
+                lagSum += mTickLags[index];
+                lagMax = Math.max(lagMax, mTickLags[index]);
+                skipped += mTickSkips[index];
+            }
+            if (ticks == 0) {
+                return "";
+            }
+            return "ticks:" + ticks + " lag avg:" + lagSum / ticks + "ms max:" + lagMax
+                    + "ms skipped:" + skipped;
+        }
+    }
+
+    /**
+     * Run one tick that was scheduled for the given deadline.
+     *
+     * @param sessionStart whether this is the first tick of the session
+     * @return deadline of the next tick
+     */
+    private long tick(long deadline, boolean sessionStart) {
+        long lag = Math.max(0, SystemClock.uptimeMillis() - deadline);
+        long time = System.currentTimeMillis();
+        AbstractSampler[] samplers = mSamplers;
+        if (sessionStart) {
+            mSessionTicks = 0;
+            for (AbstractSampler sampler : samplers) {
+                sampler.onStart();
+            }
+        }
+        for (AbstractSampler sampler : samplers) {
+            sampler.doSample(time);
+        }
+
+        long interval = nextInterval(mSessionTicks);
+        long next = deadline + interval;
+        long now = SystemClock.uptimeMillis();
+        long skipped = 0;
+        if (next <= now) {
+            //已经错过的 tick 数
+            long behind = (now - next) / interval + 1;
+            if (!mCatchUp || behind > MAX_CATCH_UP_TICKS) {
+                skipped = behind;
+                next += behind * interval;
+            }
+        }
+
+        mSessionTicks += 1 + skipped;
+
+        synchronized (this) {
+            int index = mTickCount % MAX_TICK_RECORDS;
+            mTickTimes[index] = time;
+            mTickLags[index] = lag;
+            mTickSkips[index] = skipped;
+            mTickCount++;
+        }
+        return next;
+    }
+
+    /**
+     * @param ticks ticks already run in the session
+     * @return interval between the given tick and the next one
+     */
+    private long nextInterval(int ticks) {
+        long interval = mInterval;
+        if (mBurstInterval == 0 || mBurstInterval >= interval) {
+            return interval;
+        }
+        if (ticks < mBurstCount) {
+            return mBurstInterval;
+        }
+        //密集采样之后按几何级数退避，直到正常间隔
+        double backoff = mBurstInterval * Math.pow(mBackoffFactor, ticks - mBurstCount + 1);
+        return backoff >= interval ? interval : (long) backoff;
+    }
+}
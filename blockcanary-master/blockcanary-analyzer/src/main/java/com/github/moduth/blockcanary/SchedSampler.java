@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import com.github.moduth.blockcanary.internal.ProcFile;
+
+/**
+ * Dumps scheduler statistics of the monitored thread: run time, runqueue wait time and
+ * timeslices from {@code /proc/self/task/<tid>/schedstat}, and voluntary/nonvoluntary context
+ * switches from {@code /proc/self/task/<tid>/status}.
+ * <p>
+ * The time a block spent off cpu is {@code timeCost - threadTimeCost}. The runqueue wait delta
+ * tells which part of it the thread was runnable but not scheduled, the rest it was sleeping
+ * (locks, binder, I/O). The wait delta only covers the sampled part of the block, so the
+ * runnable time is a lower bound.
+ * </p>
+ *
+ * 调度延迟采样，用来区分主线程没在跑的时间里是在排队等 cpu 还是在睡眠
+ */
+class SchedSampler extends SnapshotSampler {
+
+    private static final int SCHEDSTAT_BUFFER_SIZE = 64;
+    private static final int STATUS_BUFFER_SIZE = 2048;
+    private static final byte[] VOLUNTARY = ProcFile.key("voluntary_ctxt_switches:");
+    private static final byte[] NONVOLUNTARY = ProcFile.key("nonvoluntary_ctxt_switches:");
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final ProcFile mSchedstatFile;
+    private final ProcFile mStatusFile;
+
+    //以下单位为纳秒，读不到时 mRunNanos 为 -1
+    private final long[] mRunNanos = new long[MAX_SNAPSHOT_COUNT];
+    private final long[] mWaitNanos = new long[MAX_SNAPSHOT_COUNT];
+    private final long[] mTimeslices = new long[MAX_SNAPSHOT_COUNT];
+    private final long[] mVoluntary = new long[MAX_SNAPSHOT_COUNT];
+    private final long[] mNonvoluntary = new long[MAX_SNAPSHOT_COUNT];
+
+    /**
+     * @param threadId       tid of the monitored thread
+     * @param sampleInterval sample interval (in millis)
+     */
+    public SchedSampler(int threadId, long sampleInterval) {
+        super(sampleInterval);
+        String dir = "/proc/self/task/" + threadId + "/";
+        mSchedstatFile = new ProcFile(dir + "schedstat", SCHEDSTAT_BUFFER_SIZE);
+        mStatusFile = new ProcFile(dir + "status", STATUS_BUFFER_SIZE);
+    }
+
+    /**
+     * Scheduling state over the window, like
+     * "off-cpu:800ms runnable:620ms sleep:180ms slices:40 switches:12/35 sampled:600ms starved".
+     *
+     * @param threadTimeCost thread cpu time of the block (in millis)
+     * @return sched string, or empty string if no snapshot falls inside the window
+     */
+    public String getSchedInfo(long start, long end, long threadTimeCost) {
+        synchronized (this) {
+            if (!selectWindow(start, end)) {
+                return "";
+            }
+            int first = mFromIndex;
+            int last = mToIndex;
+            if (mRunNanos[first] < 0 || mRunNanos[last] < 0) {
+                return "";
+            }
+
+            long offCpu = Math.max(0, end - start - threadTimeCost);
+            long runnable = Math.min(offCpu,
+                    (mWaitNanos[last] - mWaitNanos[first]) / NANOS_PER_MILLI);
+            long sleep = offCpu - runnable;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("off-cpu:").append(offCpu).append("ms")
+                    .append(" runnable:").append(runnable).append("ms")
+                    .append(" sleep:").append(sleep).append("ms")
+                    .append(" slices:").append(mTimeslices[last] - mTimeslices[first])
+                    .append(" switches:").append(mVoluntary[last] - mVoluntary[first])
+                    .append('/').append(mNonvoluntary[last] - mNonvoluntary[first])
+                    .append(" sampled:").append(mSnapshotTimes[last] - mSnapshotTimes[first])
+                    .append("ms");
+            //排队等 cpu 的时间占了一半以上
+            if (runnable * 2 >= end - start) {
+                sb.append(" starved");
+            }
+            return sb.toString();
+        }
+    }
+
+    @Override
+    void readSnapshot(int index) {
+        if (mSchedstatFile.read()) {
+            mRunNanos[index] = mSchedstatFile.nextLong();
+            mWaitNanos[index] = mSchedstatFile.nextLong();
+            mTimeslices[index] = mSchedstatFile.nextLong();
+        } else {
+            //内核没开 CONFIG_SCHEDSTATS
+            mRunNanos[index] = -1;
+        }
+        if (mStatusFile.read() && mStatusFile.seekLine(VOLUNTARY)) {
+            mVoluntary[index] = mStatusFile.nextLong();
+            mNonvoluntary[index] = mStatusFile.nextLine() && mStatusFile.seekLine(NONVOLUNTARY)
+                    ? mStatusFile.nextLong() : 0;
+        } else {
+            mVoluntary[index] = 0;
+            mNonvoluntary[index] = 0;
+        }
+    }
+}
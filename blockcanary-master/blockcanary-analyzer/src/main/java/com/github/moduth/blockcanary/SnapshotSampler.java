@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+/**
+ * Base of samplers that keep a ring of timestamped snapshots of cumulative counters and report
+ * their deltas over a block window.
+ * <p>
+ * The deltas run from the first snapshot inside the window to the last one. A block usually
+ * spans a single tick, since sampling starts after most of the threshold has passed, so when
+ * only one snapshot falls inside the window the first one after it is used as the end instead:
+ * the closing snapshot taken when sampling stops, or one taken right away if there is none yet.
+ * </p>
+ * Subclasses read their counters under the sampler lock.
+ */
+abstract class SnapshotSampler extends AbstractSampler {
+
+    //快照环形缓冲区容量
+    static final int MAX_SNAPSHOT_COUNT = 32;
+
+    final long[] mSnapshotTimes = new long[MAX_SNAPSHOT_COUNT];
+    int mSnapshotCount = 0;
+    //selectWindow 选出的首尾快照在环形缓冲区中的下标
+    int mFromIndex;
+    int mToIndex;
+
+    SnapshotSampler(long sampleInterval) {
+        super(sampleInterval);
+    }
+
+    /**
+     * Read the counters into the given ring slot, called with the sampler locked.
+     */
+    abstract void readSnapshot(int index);
+
+    @Override
+    protected void doSample(long now) {
+        synchronized (this) {
+            snapshot(now);
+        }
+    }
+
+    @Override
+    void onStop() {
+        synchronized (this) {
+            //收尾快照，卡顿窗口里只有一个 tick 时用它作为终点
+            snapshot(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Take a snapshot stamped with the given time, called with the sampler locked.
+     */
+    final void snapshot(long now) {
+        int index = mSnapshotCount % MAX_SNAPSHOT_COUNT;
+        readSnapshot(index);
+        mSnapshotTimes[index] = now;
+        mSnapshotCount++;
+    }
+
+    /**
+     * Select the snapshots the deltas of the window run between into {@link #mFromIndex} and
+     * {@link #mToIndex}, called with the sampler locked.
+     *
+     * @return false if no snapshot falls inside the window
+     */
+    final boolean selectWindow(long start, long end) {
+        int first = -1;
+        int last = -1;
+        for (int i = Math.max(0, mSnapshotCount - MAX_SNAPSHOT_COUNT); i < mSnapshotCount; i++) {
+            long time = mSnapshotTimes[i % MAX_SNAPSHOT_COUNT];
+            if (time >= start && time <= end) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        if (first < 0) {
+            return false;
+        }
+        if (first == last) {
+            if (last + 1 == mSnapshotCount) {
+                snapshot(System.currentTimeMillis());
+            }
+            last++;
+        }
+        mFromIndex = first % MAX_SNAPSHOT_COUNT;
+        mToIndex = last % MAX_SNAPSHOT_COUNT;
+        return true;
+    }
+}
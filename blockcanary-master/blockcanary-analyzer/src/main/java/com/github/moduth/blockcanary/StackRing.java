@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import com.github.moduth.blockcanary.internal.BlockInfo;
+
+import java.util.ArrayList;
+
+/**
+ * Fixed-capacity ring of stack samples ordered by time.
+ * <p>
+ * Frames are interned into a {@link FrameTable} so each stack is kept as an {@code int[]} of
+ * frame ids, and identical consecutive samples in the same thread state are collapsed into one
+ * entry carrying a repeat count plus the first and last sample time. An entry may carry a note,
+ * like the lock holder candidates found when the thread was blocked. Entries are expanded back into text only when a
+ * block is reported.
+ * </p>
+ * <p>
+ * There must be a single writer (the sampling thread); readers on other threads never lock.
+ * A reader snapshots the volatile write count, reads the slots it needs and then re-reads the
+ * count, dropping every slot the writer may have touched in the meantime. The repeat count and
+ * last time of the newest entry may still be advanced while a reader copies it, in which case
+ * the reader sees a slightly older run length.
+ * </p>
+ *
+ * 堆栈环形缓冲区，单线程写、无锁读，连续相同的堆栈只存一份
+ */
+final class StackRing {
+
+    private final int mCapacity;
+    private final long[] mFirstTimes;
+    private final long[] mLastTimes;
+    private final int[] mRepeats;
+    private final Thread.State[] mStates;
+    private final String[] mNotes;
+    private final int[][] mFrameIds;
+    //栈帧字典满了以后，新的堆栈直接保存原始数据
+    private final StackTraceElement[][] mRawStacks;
+    private final FrameTable mFrameTable = new FrameTable();
+    //已写入的总数，同时用作发布写入结果的屏障
+    private volatile long mWriteCount = 0;
+
+    /**
+     * @param maxEntryCount max entries that can be read back
+     */
+    StackRing(int maxEntryCount) {
+        //多留一个槽位给正在写入的数据
+        mCapacity = maxEntryCount + 1;
+        mFirstTimes = new long[mCapacity];
+        mLastTimes = new long[mCapacity];
+        mRepeats = new int[mCapacity];
+        mStates = new Thread.State[mCapacity];
+        mNotes = new String[mCapacity];
+        mFrameIds = new int[mCapacity][];
+        mRawStacks = new StackTraceElement[mCapacity][];
+    }
+
+    /**
+     * Append a sample, must only be called from the sampling thread.
+     */
+    void add(long time, StackTraceElement[] stack) {
+        add(time, null, stack, null);
+    }
+
+    /**
+     * Append a sample, must only be called from the sampling thread.
+     *
+     * @param state thread state of the sample, null if unknown
+     * @param note  text reported after the stack, only kept when the sample starts a new entry
+     */
+    void add(long time, Thread.State state, StackTraceElement[] stack, String note) {
+        long count = mWriteCount;
+        if (count > 0) {
+            int last = slot(count - 1);
+            if (mStates[last] == state && isSameStack(mFrameIds[last], stack)) {
+                mLastTimes[last] = time;
+                mRepeats[last]++;
+                //重新写一次 volatile 字段，发布上面的修改
+                mWriteCount = count;
+                return;
+            }
+        }
+
+        int slot = slot(count);
+        int[] frameIds = mFrameTable.intern(stack);
+        mFirstTimes[slot] = time;
+        mLastTimes[slot] = time;
+        mRepeats[slot] = 1;
+        mStates[slot] = state;
+        mNotes[slot] = note;
+        mFrameIds[slot] = frameIds;
+        mRawStacks[slot] = frameIds == null ? stack : null;
+        mWriteCount = count + 1;
+    }
+
+    /**
+     * Format sample runs which overlap the range between startTime and endTime, in time order.
+     */
+    ArrayList<String> getEntries(long startTime, long endTime) {
+        ArrayList<String> result = new ArrayList<>();
+        long count = mWriteCount;
+        long oldest = Math.max(0, count - mCapacity + 1);
+        long first = lowerBound(oldest, count, startTime);
+
+        int size = 0;
+        for (long i = first; i < count && mFirstTimes[slot(i)] < endTime; i++) {
+            size++;
+        }
+        long[] firstTimes = new long[size];
+        long[] lastTimes = new long[size];
+        int[] repeats = new int[size];
+        Thread.State[] states = new Thread.State[size];
+        String[] notes = new String[size];
+        int[][] frameIds = new int[size][];
+        StackTraceElement[][] rawStacks = new StackTraceElement[size][];
+        for (int i = 0; i < size; i++) {
+            int slot = slot(first + i);
+            firstTimes[i] = mFirstTimes[slot];
+            lastTimes[i] = mLastTimes[slot];
+            repeats[i] = mRepeats[slot];
+            states[i] = mStates[slot];
+            notes[i] = mNotes[slot];
+            frameIds[i] = mFrameIds[slot];
+            rawStacks[i] = mRawStacks[slot];
+        }
+
+        //读取期间可能被覆盖的槽位都丢弃
+        long valid = Math.max(0, mWriteCount - mCapacity + 1);
+        for (int i = 0; i < size; i++) {
+            if (first + i < valid) {
+                continue;
+            }
+            result.add(format(firstTimes[i], lastTimes[i], repeats[i], states[i], frameIds[i],
+                    rawStacks[i], notes[i]));
+        }
+        return result;
+    }
+
+    private boolean isSameStack(int[] frameIds, StackTraceElement[] stack) {
+        if (frameIds == null || frameIds.length != stack.length) {
+            return false;
+        }
+        for (int i = 0; i < stack.length; i++) {
+            if (mFrameTable.intern(stack[i]) != frameIds[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * First logical index in [from, to) whose last time is greater than the given time.
+     */
+    private long lowerBound(long from, long to, long time) {
+        long low = from;
+        long high = to;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (mLastTimes[slot(mid)] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int slot(long index) {
+        return (int) (index % mCapacity);
+    }
+
+    private String format(long firstTime, long lastTime, int repeat, Thread.State state,
+                          int[] frameIds, StackTraceElement[] rawStack, String note) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(BlockInfo.TIME_FORMATTER.format(firstTime));
+        if (repeat > 1) {
+            sb.append(" ~ ")
+                    .append(BlockInfo.TIME_FORMATTER.format(lastTime))
+                    .append(" (x")
+                    .append(repeat)
+                    .append(')');
+        }
+        if (state != null) {
+            sb.append(' ').append(state);
+        }
+        sb.append(BlockInfo.SEPARATOR)
+                .append(BlockInfo.SEPARATOR);
+        if (frameIds != null) {
+            for (int id : frameIds) {
+                sb.append(mFrameTable.get(id).toString())
+                        .append(BlockInfo.SEPARATOR);
+            }
+        } else if (rawStack != null) {
+            appendStack(sb, rawStack);
+        }
+        if (note != null) {
+            sb.append(note);
+        }
+        return sb.toString();
+    }
+
+    static String format(long time, StackTraceElement[] stack) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(BlockInfo.TIME_FORMATTER.format(time))
+                .append(BlockInfo.SEPARATOR)
+                .append(BlockInfo.SEPARATOR);
+        if (stack != null) {
+            appendStack(sb, stack);
+        }
+        return sb.toString();
+    }
+
+    private static void appendStack(StringBuilder sb, StackTraceElement[] stack) {
+        for (StackTraceElement element : stack) {
+            sb.append(element.toString())
+                    .append(BlockInfo.SEPARATOR);
+        }
+    }
+}
@@ -18,26 +18,53 @@ package com.github.moduth.blockcanary;
 import android.util.Log;
 
 import com.github.moduth.blockcanary.internal.BlockInfo;
+import com.github.moduth.blockcanary.internal.ThreadUtils;
 
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 
 
 /**
  * Dumps thread stack.
+ * <p>
+ * Samples are kept as raw {@link StackTraceElement} arrays in a {@link StackRing} and only turned
+ * into strings when a block has been confirmed.
+ * </p>
+ * <p>
+ * Every sample records the thread state. When the thread starts waiting on a monitor or a
+ * condition, the stacks of up to {@code lockOwnerThreadCount} other threads are dumped once and
+ * the threads running code of the same class as the waiting frame are reported as likely lock
+ * holders, which is the other side an ANR trace would show.
+ * </p>
  */
 class StackSampler extends AbstractSampler {
 
     private static final String TAG = "StackSampler";
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
 
-    //sStackMap 的最大容量，默认 100个
+    //堆栈缓冲区的最大容量，默认 100个
     private static final int DEFAULT_MAX_ENTRY_COUNT = 100;
+    //最多报告的持锁线程候选数和每个候选的栈帧数
+    private static final int MAX_LOCK_OWNER_CANDIDATES = 2;
+    private static final int MAX_CANDIDATE_FRAMES = 10;
+    //等锁、wait、park 时栈顶的这些框架帧不能说明在等谁
+    private static final String[] WAIT_FRAME_PREFIXES = {
+            "java.lang.Object", "java.lang.Thread", "java.lang.VMThread", "sun.misc.Unsafe",
+            "java.util.concurrent.locks.", "dalvik.system."
+    };
     //用于存储时间戳和 堆栈的关系
-    private static final LinkedHashMap<Long, String> sStackMap = new LinkedHashMap<>();
+    private final StackRing mStackRing;
 
-    private int mMaxEntryCount = DEFAULT_MAX_ENTRY_COUNT;
     //主线程
     private Thread mCurrentThread;
+    //开启了采样日志时不为 null
+    private volatile BlockJournal mJournal;
+    //被采样线程的 Looper 监控器，调度器由其他 Looper 的监控器启动时不采样
+    private volatile LooperMonitor mMonitor;
+    //等锁时最多抓取的其他线程数，0 表示不抓
+    private final int mLockOwnerThreadCount;
+    //上一次采样的状态和栈顶，只在采样线程访问
+    private Thread.State mLastState;
+    private StackTraceElement mLastTopFrame;
 
     public StackSampler(Thread thread, //主线程也就是 ui线程
                         long sampleIntervalMillis//堆栈采样间隔 默认1000 ms 也就是1s
@@ -46,49 +73,148 @@ class StackSampler extends AbstractSampler {
     }
 
     public StackSampler(Thread thread, int maxEntryCount, long sampleIntervalMillis) {
+        this(thread, maxEntryCount, sampleIntervalMillis, 0);
+    }
+
+    public StackSampler(Thread thread, int maxEntryCount, long sampleIntervalMillis,
+                        int lockOwnerThreadCount) {
         super(sampleIntervalMillis);
         mCurrentThread = thread;
-        mMaxEntryCount = maxEntryCount;
+        mLockOwnerThreadCount = lockOwnerThreadCount;
+        mStackRing = new StackRing(maxEntryCount > 0 ? maxEntryCount : DEFAULT_MAX_ENTRY_COUNT);
     }
 
-    public ArrayList<String> getThreadStackEntries(long startTime, long endTime) {
-        ArrayList<String> result = new ArrayList<>();
-        synchronized (sStackMap) {
-            for (Long entryTime : sStackMap.keySet()) {
-                //获取所有 开始时间和结束结束时间之内的 堆栈
-                if (startTime < entryTime && entryTime < endTime) {
-                    result.add(BlockInfo.TIME_FORMATTER.format(entryTime)
-                            + BlockInfo.SEPARATOR
-                            + BlockInfo.SEPARATOR
-                            + sStackMap.get(entryTime));
-                }
-            }
+    void setJournal(BlockJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Only sample while the given monitor holds the shared scheduler, so a tick started by the
+     * monitor of another looper does not dump this thread.
+     */
+    void setMonitor(LooperMonitor monitor) {
+        mMonitor = monitor;
+    }
+
+    @Override
+    void onStop() {
+        BlockJournal journal = mJournal;
+        if (journal != null) {
+            journal.endSession(System.currentTimeMillis());
         }
-        return result;
+    }
+
+    public ArrayList<String> getThreadStackEntries(long startTime, long endTime) {
+        //获取所有 开始时间和结束结束时间之内的 堆栈
+        return mStackRing.getEntries(startTime, endTime);
     }
 
     @Override
-    protected void doSample() {
-        StringBuilder stringBuilder = new StringBuilder();
+    protected void doSample(long time) {
+        LooperMonitor monitor = mMonitor;
+        if (monitor != null && !monitor.isDumping()) {
+            return;
+        }
+        //获取主线程状态和堆栈， mCurrentThread 是主线程，构造方法中传进来的
+        Thread.State state = mCurrentThread.getState();
+        StackTraceElement[] stackTrace = mCurrentThread.getStackTrace();
+        StackTraceElement topFrame = stackTrace.length > 0 ? stackTrace[0] : null;
+
+        //刚开始等锁时抓一次其他线程，连续相同的等待不重复抓
+        String note = null;
+        if (mLockOwnerThreadCount > 0
+                && (state == Thread.State.BLOCKED || state == Thread.State.WAITING)
+                && (state != mLastState || topFrame == null || !topFrame.equals(mLastTopFrame))) {
+            note = findLockOwnerCandidates(stackTrace);
+        }
+        mLastState = state;
+        mLastTopFrame = topFrame;
+
+        //记录当前时间和堆栈的关系
+        mStackRing.add(time, state, stackTrace, note);
+        BlockJournal journal = mJournal;
+        if (journal != null) {
+            journal.appendStack(time, stackTrace);
+        }
 
+        if (DEBUG) {
+            Log.d(TAG, "currentTime= " + time
+                    + "\n stackTrace=" + StackRing.format(time, stackTrace));
+        }
+    }
 
-        //获取主线程堆栈， mCurrentThread 是主线程，构造方法中传进来的
-        for (StackTraceElement stackTraceElement : mCurrentThread.getStackTrace()) {
-            stringBuilder
-                    .append(stackTraceElement.toString())
-                    .append(BlockInfo.SEPARATOR);
+    /**
+     * Dump other threads and pick those running code of the class the sampled thread waits in.
+     *
+     * @return candidate lines to append after the stack, or null if none
+     */
+    private String findLockOwnerCandidates(StackTraceElement[] stack) {
+        StackTraceElement anchor = null;
+        for (StackTraceElement frame : stack) {
+            if (!isWaitFrame(frame)) {
+                anchor = frame;
+                break;
+            }
+        }
+        if (anchor == null) {
+            return null;
         }
 
-        synchronized (sStackMap) {
-            //容量满了就随便删一个
-            if (sStackMap.size() == mMaxEntryCount && mMaxEntryCount > 0) {
-                sStackMap.remove(sStackMap.keySet().iterator().next());
+        Thread self = Thread.currentThread();
+        Thread[] candidates = new Thread[MAX_LOCK_OWNER_CANDIDATES];
+        StackTraceElement[][] candidateStacks = new StackTraceElement[MAX_LOCK_OWNER_CANDIDATES][];
+        int[] scores = new int[MAX_LOCK_OWNER_CANDIDATES];
+        //多取一个，里面可能有被监控的线程自己
+        for (Thread thread : ThreadUtils.getAllThreads(mLockOwnerThreadCount + 1)) {
+            if (thread == mCurrentThread || thread == self) {
+                continue;
+            }
+            StackTraceElement[] threadStack = thread.getStackTrace();
+            int score = 0;
+            for (StackTraceElement frame : threadStack) {
+                if (anchor.getClassName().equals(frame.getClassName())) {
+                    //同一个方法里更可能持有同一把锁
+                    score = Math.max(score,
+                            anchor.getMethodName().equals(frame.getMethodName()) ? 2 : 1);
+                }
+            }
+            //替换掉分数最低的候选
+            int lowest = 0;
+            for (int i = 1; i < MAX_LOCK_OWNER_CANDIDATES; i++) {
+                if (scores[i] < scores[lowest]) {
+                    lowest = i;
+                }
             }
+            if (score > scores[lowest]) {
+                scores[lowest] = score;
+                candidates[lowest] = thread;
+                candidateStacks[lowest] = threadStack;
+            }
+        }
 
-            //记录当前时间和堆栈的关系
-            sStackMap.put(System.currentTimeMillis(), stringBuilder.toString());
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < MAX_LOCK_OWNER_CANDIDATES; i++) {
+            if (candidates[i] == null) {
+                continue;
+            }
+            sb.append("-- possible lock holder: ").append(candidates[i].getName())
+                    .append(" (").append(candidates[i].getState()).append(')')
+                    .append(BlockInfo.SEPARATOR);
+            int frames = Math.min(MAX_CANDIDATE_FRAMES, candidateStacks[i].length);
+            for (int f = 0; f < frames; f++) {
+                sb.append("   ").append(candidateStacks[i][f]).append(BlockInfo.SEPARATOR);
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
 
-            Log.e(TAG,"currentTime= "+System.currentTimeMillis() +"\n stackTrace="+stringBuilder.toString());
+    private static boolean isWaitFrame(StackTraceElement frame) {
+        String className = frame.getClassName();
+        for (String prefix : WAIT_FRAME_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
         }
+        return false;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import com.github.moduth.blockcanary.internal.ProcFile;
+
+import java.io.File;
+
+/**
+ * Dumps per-thread cpu usage from {@code /proc/self/task/<tid>/stat}.
+ * <p>
+ * Every tick snapshots the cumulative utime + stime of the monitored thread and of the other
+ * threads of the app. Thread stat files stay open between ticks and the task directory is only
+ * listed again every {@link #RESCAN_TICKS} ticks, so a tick over dozens of threads only re-reads
+ * already open files into reused buffers. When sampling stops a closing snapshot is taken and
+ * the files are closed.
+ * </p>
+ *
+ * 线程级别的 cpu 采样，用来区分是主线程自己在跑还是被其他线程抢占了
+ */
+class ThreadCpuSampler extends SnapshotSampler {
+
+    private static final int BUFFER_SIZE = 512;
+    //最多跟踪的线程数
+    private static final int MAX_THREAD_COUNT = 128;
+    //每隔多少次采样重新列一次 task 目录
+    private static final int RESCAN_TICKS = 5;
+    //USER_HZ，/proc 中的时间单位，一个 jiffy 10ms
+    private static final int MILLIS_PER_JIFFY = 10;
+
+    private final int mThreadId;
+    private final int mTopCount;
+
+    //线程槽位，下标就是槽位号
+    private final int[] mTids = new int[MAX_THREAD_COUNT];
+    private final String[] mNames = new String[MAX_THREAD_COUNT];
+    private final ProcFile[] mFiles = new ProcFile[MAX_THREAD_COUNT];
+    //槽位被占用的起始时间，用来判断两个快照之间槽位有没有换过线程
+    private final long[] mSlotSince = new long[MAX_THREAD_COUNT];
+
+    private final long[][] mSnapshotJiffies = new long[MAX_SNAPSHOT_COUNT][MAX_THREAD_COUNT];
+    private int mTicksSinceScan = RESCAN_TICKS;
+
+    /**
+     * @param threadId    tid of the monitored thread, always reported
+     * @param topCount    number of other busiest threads to report
+     * @param sampleInterval sample interval (in millis)
+     */
+    public ThreadCpuSampler(int threadId, int topCount, long sampleInterval) {
+        super(sampleInterval);
+        mThreadId = threadId;
+        mTopCount = topCount;
+    }
+
+    @Override
+    protected void doSample(long now) {
+        synchronized (this) {
+            if (++mTicksSinceScan >= RESCAN_TICKS) {
+                mTicksSinceScan = 0;
+                scanTasks(now);
+            }
+            snapshot(now);
+        }
+    }
+
+    @Override
+    void onStop() {
+        synchronized (this) {
+            super.onStop();
+            for (int slot = 0; slot < MAX_THREAD_COUNT; slot++) {
+                if (mFiles[slot] != null) {
+                    mFiles[slot].close();
+                    mFiles[slot] = null;
+                }
+            }
+            //下一轮第一个 tick 重新列 task 目录
+            mTicksSinceScan = RESCAN_TICKS;
+        }
+    }
+
+    /**
+     * Per-thread cpu usage over the window, like "main(1234):85% RenderThread(1290):30%".
+     * The monitored thread comes first.
+     *
+     * @return usage string, or empty string if no snapshot falls inside the window
+     */
+    public String getThreadCpuInfo(long start, long end) {
+        synchronized (this) {
+            if (!selectWindow(start, end)) {
+                return "";
+            }
+
+            long fromTime = mSnapshotTimes[mFromIndex];
+            long duration = mSnapshotTimes[mToIndex] - fromTime;
+            long[] from = mSnapshotJiffies[mFromIndex];
+            long[] to = mSnapshotJiffies[mToIndex];
+            long[] deltas = new long[MAX_THREAD_COUNT];
+            for (int slot = 0; slot < MAX_THREAD_COUNT; slot++) {
+                boolean valid = mSlotSince[slot] <= fromTime
+                        && from[slot] >= 0 && to[slot] >= from[slot];
+                deltas[slot] = valid ? to[slot] - from[slot] : -1;
+            }
+
+            StringBuilder sb = new StringBuilder();
+            //文件可能已经在 onStop 中关掉了，按 tid 找
+            for (int slot = 0; slot < MAX_THREAD_COUNT; slot++) {
+                if (mTids[slot] == mThreadId && deltas[slot] >= 0) {
+                    appendThread(sb, slot, deltas[slot], duration);
+                    deltas[slot] = -1;
+                    break;
+                }
+            }
+            //选出最忙的几个线程
+            for (int n = 0; n < mTopCount; n++) {
+                int busiest = -1;
+                for (int slot = 0; slot < MAX_THREAD_COUNT; slot++) {
+                    if (deltas[slot] > 0 && (busiest < 0 || deltas[slot] > deltas[busiest])) {
+                        busiest = slot;
+                    }
+                }
+                if (busiest < 0) {
+                    break;
+                }
+                appendThread(sb, busiest, deltas[busiest], duration);
+                deltas[busiest] = -1;
+            }
+            return sb.toString().trim();
+        }
+    }
+
+    private void appendThread(StringBuilder sb, int slot, long jiffies, long duration) {
+        sb.append(mNames[slot])
+                .append('(').append(mTids[slot]).append(')')
+                .append(':').append(jiffies * MILLIS_PER_JIFFY * 100 / Math.max(1, duration))
+                .append("% ");
+    }
+
+    @Override
+    void readSnapshot(int index) {
+        long[] jiffies = mSnapshotJiffies[index];
+        for (int slot = 0; slot < MAX_THREAD_COUNT; slot++) {
+            jiffies[slot] = mFiles[slot] == null ? -1 : readJiffies(slot);
+        }
+    }
+
+    private long readJiffies(int slot) {
+        ProcFile file = mFiles[slot];
+        if (!file.read()) {
+            //线程已经退出了，释放槽位
+            file.close();
+            mFiles[slot] = null;
+            mNames[slot] = null;
+            return -1;
+        }
+        if (mNames[slot] == null) {
+            mNames[slot] = file.textBetween((byte) '(', (byte) ')');
+        }
+        if (!file.seekAfterLast((byte) ')')) {
+            return -1;
+        }
+        //utime 是第 14 个字段
+        file.skipFields(11);
+        return file.nextLong() + file.nextLong();
+    }
+
+    private void scanTasks(long now) {
+        String[] tasks = new File("/proc/self/task").list();
+        if (tasks == null) {
+            return;
+        }
+        for (String task : tasks) {
+            int tid;
+            try {
+                tid = Integer.parseInt(task);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (findSlot(tid) >= 0) {
+                continue;
+            }
+            int slot = findSlot(0);
+            if (slot < 0) {
+                //槽位用完了
+                return;
+            }
+            mTids[slot] = tid;
+            mNames[slot] = null;
+            mSlotSince[slot] = now;
+            mFiles[slot] = new ProcFile("/proc/self/task/" + tid + "/stat", BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * @return slot of the thread, or the first free slot when tid is 0
+     */
+    private int findSlot(int tid) {
+        for (int slot = 0; slot < MAX_THREAD_COUNT; slot++) {
+            if (tid == 0 ? mFiles[slot] == null : (mFiles[slot] != null && mTids[slot] == tid)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+}
@@ -24,6 +24,11 @@ import android.util.Log;
 
 import com.github.moduth.blockcanary.BlockCanaryInternals;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Locale;
@@ -51,6 +56,18 @@ public class BlockInfo {
     public static final String KEY_CPU_CORE = "cpu-core";
     public static final String KEY_CPU_BUSY = "cpu-busy";
     public static final String KEY_CPU_RATE = "cpu-rate";
+    public static final String KEY_CPU_CONTENTION = "cpu-contention";
+    public static final String KEY_THREAD_CPU = "thread-cpu";
+    public static final String KEY_CPU_CORE_USAGE = "core-usage";
+    public static final String KEY_MEMORY_USAGE = "memory-usage";
+    public static final String KEY_IO_USAGE = "io-usage";
+    public static final String KEY_SCHED_LATENCY = "sched-latency";
+    public static final String KEY_PRESSURE = "pressure";
+    public static final String KEY_SAMPLE_LAG = "sample-lag";
+    public static final String KEY_BASELINE = "baseline";
+    public static final String KEY_FREEZE = "freeze";
+    public static final String KEY_LOOPER = "looper";
+    public static final String KEY_HANDLER = "handler";
     public static final String KEY_TIME_COST = "time";
     public static final String KEY_THREAD_TIME_COST = "thread-time";
     public static final String KEY_TIME_COST_START = "time-start";
@@ -92,7 +109,29 @@ public class BlockInfo {
     public String timeStart;
     public String timeEnd;
     public boolean cpuBusy;
+    /**
+     * Cpu contention score in [0, 100] over the block window, -1 if unknown.
+     */
+    public int cpuContention = -1;
     public String cpuRateInfo;
+    public String threadCpuInfo;
+    public String cpuCoreInfo;
+    public String memoryInfo;
+    public String ioInfo;
+    public String schedInfo;
+    public String pressureInfo;
+    public String sampleLagInfo;
+    public String baselineInfo;
+    public String freezeInfo;
+    /**
+     * Tag of the monitored looper, null for the main looper.
+     */
+    public String looperTag;
+    /**
+     * Handler class, callback class and what of the blocked message, with the totals of the
+     * messages from the same source, null if unknown.
+     */
+    public String handlerInfo;
     public ArrayList<String> threadStackEntries = new ArrayList<>();
 
     private StringBuilder basicSb = new StringBuilder();
@@ -153,11 +192,71 @@ public class BlockInfo {
         return this;
     }
 
+    public BlockInfo setCpuContention(int contention) {
+        cpuContention = contention;
+        return this;
+    }
+
     public BlockInfo setRecentCpuRate(String info) {
         cpuRateInfo = info;
         return this;
     }
 
+    public BlockInfo setThreadCpuInfo(String info) {
+        threadCpuInfo = info;
+        return this;
+    }
+
+    public BlockInfo setCpuCoreInfo(String info) {
+        cpuCoreInfo = info;
+        return this;
+    }
+
+    public BlockInfo setMemoryInfo(String info) {
+        memoryInfo = info;
+        return this;
+    }
+
+    public BlockInfo setIoInfo(String info) {
+        ioInfo = info;
+        return this;
+    }
+
+    public BlockInfo setSchedInfo(String info) {
+        schedInfo = info;
+        return this;
+    }
+
+    public BlockInfo setPressureInfo(String info) {
+        pressureInfo = info;
+        return this;
+    }
+
+    public BlockInfo setSampleLagInfo(String info) {
+        sampleLagInfo = info;
+        return this;
+    }
+
+    public BlockInfo setBaselineInfo(String info) {
+        baselineInfo = info;
+        return this;
+    }
+
+    public BlockInfo setFreezeInfo(String info) {
+        freezeInfo = info;
+        return this;
+    }
+
+    public BlockInfo setLooperTag(String tag) {
+        looperTag = tag;
+        return this;
+    }
+
+    public BlockInfo setHandlerInfo(String info) {
+        handlerInfo = info;
+        return this;
+    }
+
     public BlockInfo setThreadStackEntries(ArrayList<String> threadStackEntries) {
         this.threadStackEntries = threadStackEntries;
         return this;
@@ -171,6 +270,141 @@ public class BlockInfo {
         return this;
     }
 
+    /**
+     * Parse a block saved as a text log by older versions, fields missing from the text are left
+     * as they are.
+     *
+     * @param file      text log file
+     * @param blockInfo block info to fill
+     * @return the given block info
+     * @throws IOException if the file can not be read or is not a well formed block log
+     */
+    public static <T extends BlockInfo> T readText(File file, T blockInfo) throws IOException {
+        BufferedReader reader = null;
+        //每个卡顿日志都有开始时间，没有说明不是卡顿日志
+        boolean hasTimeStart = false;
+        try {
+            InputStreamReader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+
+            reader = new BufferedReader(in);
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(KEY_QUA)) {
+                    blockInfo.qualifier = value(line);
+                } else if (line.startsWith(KEY_MODEL)) {
+                    blockInfo.model = value(line);
+                } else if (line.startsWith(KEY_API)) {
+                    blockInfo.apiLevel = value(line);
+                } else if (line.startsWith(KEY_IMEI)) {
+                    blockInfo.imei = value(line);
+                } else if (line.startsWith(KEY_CPU_CORE)) {
+                    blockInfo.cpuCoreNum = Integer.valueOf(value(line));
+                } else if (line.startsWith(KEY_UID)) {
+                    blockInfo.uid = value(line);
+                } else if (line.startsWith(KEY_TIME_COST_START)) {
+                    blockInfo.timeStart = value(line);
+                    hasTimeStart = true;
+                } else if (line.startsWith(KEY_TIME_COST_END)) {
+                    blockInfo.timeEnd = value(line);
+                } else if (line.startsWith(KEY_TIME_COST)) {
+                    blockInfo.timeCost = Long.valueOf(value(line));
+                } else if (line.startsWith(KEY_THREAD_TIME_COST)) {
+                    blockInfo.threadTimeCost = Long.valueOf(value(line));
+                } else if (line.startsWith(KEY_PROCESS)) {
+                    blockInfo.processName = value(line);
+                } else if (line.startsWith(KEY_VERSION_NAME)) {
+                    blockInfo.versionName = value(line);
+                } else if (line.startsWith(KEY_VERSION_CODE)) {
+                    blockInfo.versionCode = Integer.valueOf(value(line));
+                } else if (line.startsWith(KEY_NETWORK)) {
+                    blockInfo.network = value(line);
+                } else if (line.startsWith(KEY_TOTAL_MEMORY)) {
+                    blockInfo.totalMemory = value(line);
+                } else if (line.startsWith(KEY_FREE_MEMORY)) {
+                    blockInfo.freeMemory = value(line);
+                } else if (line.startsWith(KEY_CPU_BUSY)) {
+                    blockInfo.cpuBusy = Boolean.valueOf(value(line));
+                } else if (line.startsWith(KEY_CPU_CONTENTION)) {
+                    blockInfo.cpuContention = Integer.valueOf(value(line));
+                } else if (line.startsWith(KEY_THREAD_CPU)) {
+                    blockInfo.threadCpuInfo = value(line);
+                } else if (line.startsWith(KEY_CPU_CORE_USAGE)) {
+                    blockInfo.cpuCoreInfo = value(line);
+                } else if (line.startsWith(KEY_MEMORY_USAGE)) {
+                    blockInfo.memoryInfo = value(line);
+                } else if (line.startsWith(KEY_IO_USAGE)) {
+                    blockInfo.ioInfo = value(line);
+                } else if (line.startsWith(KEY_SCHED_LATENCY)) {
+                    blockInfo.schedInfo = value(line);
+                } else if (line.startsWith(KEY_PRESSURE)) {
+                    blockInfo.pressureInfo = value(line);
+                } else if (line.startsWith(KEY_SAMPLE_LAG)) {
+                    blockInfo.sampleLagInfo = value(line);
+                } else if (line.startsWith(KEY_BASELINE)) {
+                    blockInfo.baselineInfo = value(line);
+                } else if (line.startsWith(KEY_FREEZE)) {
+                    blockInfo.freezeInfo = value(line);
+                } else if (line.startsWith(KEY_LOOPER)) {
+                    blockInfo.looperTag = value(line);
+                } else if (line.startsWith(KEY_HANDLER)) {
+                    blockInfo.handlerInfo = value(line);
+                } else if (line.startsWith(KEY_CPU_RATE)) {
+                    String cpuRate = value(line);
+                    if (!cpuRate.isEmpty()) {
+                        StringBuilder cpuRateSb = new StringBuilder(cpuRate).append(SEPARATOR);
+                        line = reader.readLine();
+
+                        // read until SEPARATOR appears
+                        while (line != null) {
+                            if (!line.equals("")) {
+                                cpuRateSb.append(line).append(SEPARATOR);
+                            } else {
+                                break;
+                            }
+                            line = reader.readLine();
+                        }
+                        blockInfo.cpuRateInfo = cpuRateSb.toString();
+                    }
+                } else if (line.startsWith(KEY_STACK)) {
+                    StringBuilder stackSb = new StringBuilder(value(line));
+                    line = reader.readLine();
+
+                    // read until file ends
+                    while (line != null) {
+                        if (!line.equals("")) {
+                            stackSb.append(line).append(SEPARATOR);
+                        } else if (stackSb.length() > 0) {
+                            // ignore continual blank lines
+                            blockInfo.threadStackEntries.add(stackSb.toString());
+                            stackSb = new StringBuilder();
+                        }
+                        line = reader.readLine();
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            //字段缺值或者数字格式不对
+            throw new IOException("malformed block log " + file, e);
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (Exception e) {
+                Log.e(TAG, NEW_INSTANCE_METHOD, e);
+            }
+        }
+        if (!hasTimeStart) {
+            throw new IOException("not a block log " + file);
+        }
+        return blockInfo;
+    }
+
+    //KV 之后的内容，没有值时为空串
+    private static String value(String line) {
+        int index = line.indexOf(KV);
+        return index < 0 ? "" : line.substring(index + KV.length());
+    }
+
     public BlockInfo flushString() {
         String separator = SEPARATOR;
         basicSb.append(KEY_QUA).append(KV).append(qualifier).append(separator);
@@ -190,8 +424,42 @@ public class BlockInfo {
         timeSb.append(KEY_THREAD_TIME_COST).append(KV).append(threadTimeCost).append(separator);
         timeSb.append(KEY_TIME_COST_START).append(KV).append(timeStart).append(separator);
         timeSb.append(KEY_TIME_COST_END).append(KV).append(timeEnd).append(separator);
+        if (freezeInfo != null) {
+            timeSb.append(KEY_FREEZE).append(KV).append(freezeInfo).append(separator);
+        }
+        if (looperTag != null) {
+            timeSb.append(KEY_LOOPER).append(KV).append(looperTag).append(separator);
+        }
+        if (handlerInfo != null) {
+            timeSb.append(KEY_HANDLER).append(KV).append(handlerInfo).append(separator);
+        }
 
         cpuSb.append(KEY_CPU_BUSY).append(KV).append(cpuBusy).append(separator);
+        cpuSb.append(KEY_CPU_CONTENTION).append(KV).append(cpuContention).append(separator);
+        if (threadCpuInfo != null) {
+            cpuSb.append(KEY_THREAD_CPU).append(KV).append(threadCpuInfo).append(separator);
+        }
+        if (cpuCoreInfo != null) {
+            cpuSb.append(KEY_CPU_CORE_USAGE).append(KV).append(cpuCoreInfo).append(separator);
+        }
+        if (memoryInfo != null) {
+            cpuSb.append(KEY_MEMORY_USAGE).append(KV).append(memoryInfo).append(separator);
+        }
+        if (ioInfo != null) {
+            cpuSb.append(KEY_IO_USAGE).append(KV).append(ioInfo).append(separator);
+        }
+        if (schedInfo != null) {
+            cpuSb.append(KEY_SCHED_LATENCY).append(KV).append(schedInfo).append(separator);
+        }
+        if (pressureInfo != null) {
+            cpuSb.append(KEY_PRESSURE).append(KV).append(pressureInfo).append(separator);
+        }
+        if (sampleLagInfo != null) {
+            cpuSb.append(KEY_SAMPLE_LAG).append(KV).append(sampleLagInfo).append(separator);
+        }
+        if (baselineInfo != null) {
+            cpuSb.append(KEY_BASELINE).append(KV).append(baselineInfo).append(separator);
+        }
         cpuSb.append(KEY_CPU_RATE).append(KV).append(cpuRateInfo).append(separator);
 
         if (threadStackEntries != null && !threadStackEntries.isEmpty()) {
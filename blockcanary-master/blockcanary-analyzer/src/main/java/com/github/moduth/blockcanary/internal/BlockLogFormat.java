@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary block log layout shared by {@link BlockLogWriter} and {@link BlockLogReader}.
+ * <pre>
+ * file   := MAGIC version:varint chunk*
+ * chunk  := type:byte length:varint payload[length]
+ * STRING := utf-8 bytes, ids are assigned in file order starting at 0
+ * RECORD := (tag:varint value)*, tag is field number &lt;&lt; 2 | wire type
+ * DELETE := record offset:varint, marks an earlier record of the file as deleted
+ * VARINT value := zigzag varint
+ * STRING value := string id:varint
+ * STACKS value := count:varint (lines:varint line id:varint*)*
+ * </pre>
+ * Every string, including each line of a stack entry, is stored once per file. Readers skip
+ * unknown chunk types and fields, so new fields do not need a new version.
+ */
+final class BlockLogFormat {
+
+    static final byte[] MAGIC = {'B', 'C', 'L', 'G'};
+    static final int VERSION = 1;
+
+    static final int CHUNK_STRING = 1;
+    static final int CHUNK_RECORD = 2;
+    static final int CHUNK_DELETE = 3;
+
+    static final int WIRE_VARINT = 0;
+    static final int WIRE_STRING = 1;
+    static final int WIRE_STACKS = 2;
+
+    //字段编号，只能追加，不能修改
+    static final int FIELD_QUALIFIER = 1;
+    static final int FIELD_MODEL = 2;
+    static final int FIELD_API_LEVEL = 3;
+    static final int FIELD_IMEI = 4;
+    static final int FIELD_CPU_CORE = 5;
+    static final int FIELD_UID = 6;
+    static final int FIELD_PROCESS = 7;
+    static final int FIELD_VERSION_NAME = 8;
+    static final int FIELD_VERSION_CODE = 9;
+    static final int FIELD_NETWORK = 10;
+    static final int FIELD_FREE_MEMORY = 11;
+    static final int FIELD_TOTAL_MEMORY = 12;
+    static final int FIELD_TIME_COST = 13;
+    static final int FIELD_THREAD_TIME_COST = 14;
+    static final int FIELD_TIME_START = 15;
+    static final int FIELD_TIME_END = 16;
+    static final int FIELD_CPU_BUSY = 17;
+    static final int FIELD_CPU_CONTENTION = 18;
+    static final int FIELD_CPU_RATE = 19;
+    static final int FIELD_THREAD_CPU = 20;
+    static final int FIELD_CPU_CORE_USAGE = 21;
+    static final int FIELD_MEMORY_USAGE = 22;
+    static final int FIELD_IO_USAGE = 23;
+    static final int FIELD_SCHED_LATENCY = 24;
+    static final int FIELD_PRESSURE = 25;
+    static final int FIELD_SAMPLE_LAG = 26;
+    static final int FIELD_BASELINE = 27;
+    static final int FIELD_FREEZE = 28;
+    static final int FIELD_LOOPER = 29;
+    static final int FIELD_HANDLER = 30;
+    static final int FIELD_STACK = 31;
+    //保存时间总是记录的第一个字段，不用解码整条记录就能拿到
+    static final int FIELD_SAVE_TIME = 32;
+
+    private BlockLogFormat() {
+        throw new InstantiationError("Must not instantiate this class");
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    static int writeVarint(OutputStream out, long value) throws IOException {
+        int count = 1;
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+            count++;
+        }
+        out.write((int) value);
+        return count;
+    }
+
+    /**
+     * @throws java.nio.BufferUnderflowException if the varint is truncated
+     */
+    static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.CHUNK_DELETE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.CHUNK_RECORD;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.CHUNK_STRING;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_API_LEVEL;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_BASELINE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_BUSY;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_CONTENTION;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_CORE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_CORE_USAGE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_RATE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_FREEZE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_FREE_MEMORY;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_HANDLER;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_IMEI;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_IO_USAGE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_LOOPER;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_MEMORY_USAGE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_MODEL;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_NETWORK;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_PRESSURE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_PROCESS;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_QUALIFIER;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_SAMPLE_LAG;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_SAVE_TIME;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_SCHED_LATENCY;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_STACK;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_THREAD_CPU;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_THREAD_TIME_COST;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_TIME_COST;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_TIME_END;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_TIME_START;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_TOTAL_MEMORY;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_UID;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_VERSION_CODE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_VERSION_NAME;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.MAGIC;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.VERSION;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.WIRE_STACKS;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.WIRE_STRING;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.WIRE_VARINT;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.readVarint;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.unzigzag;
+
+/**
+ * Random access reader of a binary block log, see {@link BlockLogFormat}.
+ * <p>
+ * Opening maps the file and walks the chunk headers once to index the records and the
+ * dictionary, strings are only decoded when a record uses them. A truncated tail, like a record
+ * cut by a crash, is ignored, and so is everything from a malformed chunk header on.
+ * </p>
+ */
+public final class BlockLogReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile mFile;
+    private final ByteBuffer mBuffer;
+    private final int[] mStringOffsets;
+    private final int[] mStringLengths;
+    private final String[] mStrings;
+    private final int mStringCount;
+    private final int[] mRecordOffsets;
+    private final int[] mRecordLengths;
+    private final int mRecordCount;
+    private final boolean[] mDeleted;
+    private final long mValidLength;
+
+    private BlockLogReader(RandomAccessFile file, ByteBuffer buffer) throws IOException {
+        mFile = file;
+        mBuffer = buffer;
+
+        byte[] magic = new byte[MAGIC.length];
+        int version;
+        try {
+            buffer.get(magic);
+            version = (int) readVarint(buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("not a block log");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("not a block log");
+            }
+        }
+        if (version > VERSION) {
+            throw new IOException("unsupported block log version " + version);
+        }
+
+        IntList stringOffsets = new IntList();
+        IntList stringLengths = new IntList();
+        IntList recordOffsets = new IntList();
+        IntList recordLengths = new IntList();
+        IntList deletedOffsets = new IntList();
+        int valid = buffer.position();
+        try {
+            while (buffer.hasRemaining()) {
+                int type = buffer.get();
+                int length = (int) readVarint(buffer);
+                int offset = buffer.position();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                if (type == CHUNK_STRING) {
+                    stringOffsets.add(offset);
+                    stringLengths.add(length);
+                } else if (type == CHUNK_RECORD) {
+                    recordOffsets.add(offset);
+                    recordLengths.add(length);
+                } else if (type == CHUNK_DELETE) {
+                    deletedOffsets.add((int) readVarint(buffer));
+                }
+                //不认识的块直接跳过
+                buffer.position(offset + length);
+                valid = buffer.position();
+            }
+        } catch (BufferUnderflowException | IOException e) {
+            //尾部的块头不完整，或者块头的 varint 坏了，之后的数据都不可信
+        }
+        mValidLength = valid;
+        mStringOffsets = stringOffsets.toArray();
+        mStringLengths = stringLengths.toArray();
+        mStringCount = mStringOffsets.length;
+        mStrings = new String[mStringCount];
+        mRecordOffsets = recordOffsets.toArray();
+        mRecordLengths = recordLengths.toArray();
+        mRecordCount = mRecordOffsets.length;
+        mDeleted = new boolean[mRecordCount];
+        for (int offset : deletedOffsets.toArray()) {
+            int index = indexOf(offset);
+            if (index >= 0) {
+                mDeleted[index] = true;
+            }
+        }
+    }
+
+    /**
+     * @throws IOException if the file is not a block log
+     */
+    public static BlockLogReader open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            return new BlockLogReader(raf, buffer);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Whether the file starts with the block log magic.
+     */
+    public static boolean isBlockLog(File file) {
+        byte[] magic = new byte[MAGIC.length];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            if (in.read(magic) != magic.length) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return offset of the record chunk, the value {@link BlockLogWriter#append(BlockInfo)}
+     * returned for it
+     */
+    public long getRecordOffset(int index) {
+        //块头是 1 字节类型加上长度的 varint
+        return mRecordOffsets[index] - 1 - varintSize(mRecordLengths[index]);
+    }
+
+    /**
+     * Whether the record was deleted by {@link BlockLogWriter#delete(long)}.
+     */
+    public boolean isDeleted(int index) {
+        return mDeleted[index];
+    }
+
+    /**
+     * When the record was saved, read without decoding the rest of it.
+     *
+     * @return save time in milliseconds, 0 if the record has none
+     */
+    public long getSaveTime(int index) {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mRecordOffsets[index]);
+        buffer.limit(mRecordOffsets[index] + mRecordLengths[index]);
+        try {
+            if (readVarint(buffer) == (FIELD_SAVE_TIME << 2 | WIRE_VARINT)) {
+                return unzigzag(readVarint(buffer));
+            }
+        } catch (BufferUnderflowException | IOException e) {
+            //坏记录当作没有保存时间
+        }
+        return 0;
+    }
+
+    /**
+     * Index of the record whose chunk starts at the offset.
+     *
+     * @return record index, or -1 if no record starts there
+     */
+    public int indexOf(long recordOffset) {
+        int low = 0;
+        int high = mRecordCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long offset = getRecordOffset(mid);
+            if (offset < recordOffset) {
+                low = mid + 1;
+            } else if (offset > recordOffset) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decode a record into the given info, fields missing from the record are left as they are.
+     * Call {@link BlockInfo#flushString()} afterwards to render it as text.
+     */
+    public <T extends BlockInfo> T read(int index, T info) throws IOException {
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mRecordOffsets[index]);
+        int end = mRecordOffsets[index] + mRecordLengths[index];
+        try {
+            while (buffer.position() < end) {
+                long tag = readVarint(buffer);
+                int field = (int) (tag >>> 2);
+                switch ((int) (tag & 3)) {
+                    case WIRE_VARINT:
+                        setNumber(info, field, unzigzag(readVarint(buffer)));
+                        break;
+                    case WIRE_STRING:
+                        setString(info, field, getString((int) readVarint(buffer)));
+                        break;
+                    case WIRE_STACKS:
+                        ArrayList<String> entries = readStacks(buffer);
+                        if (field == FIELD_STACK) {
+                            info.threadStackEntries = entries;
+                        }
+                        break;
+                    default:
+                        throw new IOException("unknown wire type in record " + index);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("corrupt record " + index);
+        }
+        return info;
+    }
+
+    /**
+     * Render a record as the text {@link BlockInfo#toString()} gives.
+     */
+    public String renderText(int index) throws IOException {
+        return read(index, new BlockInfo()).flushString().toString();
+    }
+
+    int getStringCount() {
+        return mStringCount;
+    }
+
+    String getString(int id) {
+        String value = mStrings[id];
+        if (value == null) {
+            byte[] bytes = new byte[mStringLengths[id]];
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position(mStringOffsets[id]);
+            buffer.get(bytes);
+            value = new String(bytes, UTF_8);
+            mStrings[id] = value;
+        }
+        return value;
+    }
+
+    /**
+     * @return length of the file up to the last complete chunk
+     */
+    long getValidLength() {
+        return mValidLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private ArrayList<String> readStacks(ByteBuffer buffer) throws IOException {
+        int count = (int) readVarint(buffer);
+        ArrayList<String> entries = new ArrayList<>(count);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int lines = (int) readVarint(buffer);
+            sb.setLength(0);
+            for (int j = 0; j < lines; j++) {
+                if (j > 0) {
+                    sb.append(BlockInfo.SEPARATOR);
+                }
+                sb.append(getString((int) readVarint(buffer)));
+            }
+            entries.add(sb.toString());
+        }
+        return entries;
+    }
+
+    private static void setNumber(BlockInfo info, int field, long value) {
+        switch (field) {
+            case FIELD_CPU_CORE:
+                info.cpuCoreNum = (int) value;
+                break;
+            case FIELD_VERSION_CODE:
+                info.versionCode = (int) value;
+                break;
+            case FIELD_TIME_COST:
+                info.timeCost = value;
+                break;
+            case FIELD_THREAD_TIME_COST:
+                info.threadTimeCost = value;
+                break;
+            case FIELD_CPU_BUSY:
+                info.cpuBusy = value != 0;
+                break;
+            case FIELD_CPU_CONTENTION:
+                info.cpuContention = (int) value;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void setString(BlockInfo info, int field, String value) {
+        switch (field) {
+            case FIELD_QUALIFIER:
+                info.qualifier = value;
+                break;
+            case FIELD_MODEL:
+                info.model = value;
+                break;
+            case FIELD_API_LEVEL:
+                info.apiLevel = value;
+                break;
+            case FIELD_IMEI:
+                info.imei = value;
+                break;
+            case FIELD_UID:
+                info.uid = value;
+                break;
+            case FIELD_PROCESS:
+                info.processName = value;
+                break;
+            case FIELD_VERSION_NAME:
+                info.versionName = value;
+                break;
+            case FIELD_NETWORK:
+                info.network = value;
+                break;
+            case FIELD_FREE_MEMORY:
+                info.freeMemory = value;
+                break;
+            case FIELD_TOTAL_MEMORY:
+                info.totalMemory = value;
+                break;
+            case FIELD_TIME_START:
+                info.timeStart = value;
+                break;
+            case FIELD_TIME_END:
+                info.timeEnd = value;
+                break;
+            case FIELD_CPU_RATE:
+                info.cpuRateInfo = value;
+                break;
+            case FIELD_THREAD_CPU:
+                info.threadCpuInfo = value;
+                break;
+            case FIELD_CPU_CORE_USAGE:
+                info.cpuCoreInfo = value;
+                break;
+            case FIELD_MEMORY_USAGE:
+                info.memoryInfo = value;
+                break;
+            case FIELD_IO_USAGE:
+                info.ioInfo = value;
+                break;
+            case FIELD_SCHED_LATENCY:
+                info.schedInfo = value;
+                break;
+            case FIELD_PRESSURE:
+                info.pressureInfo = value;
+                break;
+            case FIELD_SAMPLE_LAG:
+                info.sampleLagInfo = value;
+                break;
+            case FIELD_BASELINE:
+                info.baselineInfo = value;
+                break;
+            case FIELD_FREEZE:
+                info.freezeInfo = value;
+                break;
+            case FIELD_LOOPER:
+                info.looperTag = value;
+                break;
+            case FIELD_HANDLER:
+                info.handlerInfo = value;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Growable int array, avoids boxing while indexing large logs.
+     */
+    private static final class IntList {
+
+        private int[] mValues = new int[64];
+        private int mSize = 0;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                int[] values = new int[mSize * 2];
+                System.arraycopy(mValues, 0, values, 0, mSize);
+                mValues = values;
+            }
+            mValues[mSize++] = value;
+        }
+
+        int[] toArray() {
+            int[] values = new int[mSize];
+            System.arraycopy(mValues, 0, values, 0, mSize);
+            return values;
+        }
+    }
+}
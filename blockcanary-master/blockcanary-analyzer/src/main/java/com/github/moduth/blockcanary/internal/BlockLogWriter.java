@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.CHUNK_DELETE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.CHUNK_RECORD;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.CHUNK_STRING;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_API_LEVEL;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_BASELINE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_BUSY;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_CONTENTION;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_CORE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_CORE_USAGE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_CPU_RATE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_FREEZE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_FREE_MEMORY;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_HANDLER;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_IMEI;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_IO_USAGE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_LOOPER;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_MEMORY_USAGE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_MODEL;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_NETWORK;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_PRESSURE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_PROCESS;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_QUALIFIER;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_SAMPLE_LAG;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_SAVE_TIME;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_SCHED_LATENCY;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_STACK;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_THREAD_CPU;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_THREAD_TIME_COST;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_TIME_COST;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_TIME_END;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_TIME_START;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_TOTAL_MEMORY;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_UID;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_VERSION_CODE;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_VERSION_NAME;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.MAGIC;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.VERSION;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.WIRE_STACKS;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.WIRE_STRING;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.WIRE_VARINT;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.writeVarint;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.zigzag;
+
+/**
+ * Streams {@link BlockInfo} records into a binary block log, see {@link BlockLogFormat}.
+ * <p>
+ * Strings a record uses for the first time are written as dictionary chunks right before it,
+ * so the file is valid after every {@link #append(BlockInfo)} and a crash loses at most the
+ * record being written. Opening an existing log reloads its dictionary and drops a truncated
+ * tail.
+ * </p>
+ */
+public final class BlockLogWriter implements Closeable {
+
+    private static final String SEPARATOR = BlockInfo.SEPARATOR;
+
+    private final OutputStream mOut;
+    private final Map<String, Integer> mDictionary;
+    //当前记录先编码到这里，字典项写完以后再整块写出
+    private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream(4096);
+    private long mLength;
+
+    private BlockLogWriter(OutputStream out, Map<String, Integer> dictionary, long length) {
+        mOut = out;
+        mDictionary = dictionary;
+        mLength = length;
+    }
+
+    /**
+     * Open a block log for appending, creating it if it does not exist or is empty.
+     *
+     * @throws IOException if the file exists but is not a block log
+     */
+    public static BlockLogWriter open(File file) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<>();
+        long length = 0;
+        if (file.length() > 0) {
+            BlockLogReader reader = BlockLogReader.open(file);
+            try {
+                for (int i = 0; i < reader.getStringCount(); i++) {
+                    dictionary.put(reader.getString(i), i);
+                }
+                length = reader.getValidLength();
+            } finally {
+                reader.close();
+            }
+            //去掉写了一半的尾部
+            if (length < file.length()) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    raf.setLength(length);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file, true));
+        if (length == 0) {
+            out.write(MAGIC);
+            length = MAGIC.length + writeVarint(out, VERSION);
+        }
+        return new BlockLogWriter(out, dictionary, length);
+    }
+
+    /**
+     * Append a record saved now and flush it.
+     *
+     * @return offset of the record chunk in the file
+     */
+    public long append(BlockInfo info) throws IOException {
+        return append(info, System.currentTimeMillis());
+    }
+
+    /**
+     * Append a record and flush it.
+     *
+     * @param saveTime when the block was saved, see {@link BlockLogReader#getSaveTime(int)}
+     * @return offset of the record chunk in the file
+     */
+    public long append(BlockInfo info, long saveTime) throws IOException {
+        mRecord.reset();
+        writeNumber(FIELD_SAVE_TIME, saveTime);
+        writeString(FIELD_QUALIFIER, info.qualifier);
+        writeString(FIELD_MODEL, info.model);
+        writeString(FIELD_API_LEVEL, info.apiLevel);
+        writeString(FIELD_IMEI, info.imei);
+        writeNumber(FIELD_CPU_CORE, info.cpuCoreNum);
+        writeString(FIELD_UID, info.uid);
+        writeString(FIELD_PROCESS, info.processName);
+        writeString(FIELD_VERSION_NAME, info.versionName);
+        writeNumber(FIELD_VERSION_CODE, info.versionCode);
+        writeString(FIELD_NETWORK, info.network);
+        writeString(FIELD_FREE_MEMORY, info.freeMemory);
+        writeString(FIELD_TOTAL_MEMORY, info.totalMemory);
+        writeNumber(FIELD_TIME_COST, info.timeCost);
+        writeNumber(FIELD_THREAD_TIME_COST, info.threadTimeCost);
+        writeString(FIELD_TIME_START, info.timeStart);
+        writeString(FIELD_TIME_END, info.timeEnd);
+        writeNumber(FIELD_CPU_BUSY, info.cpuBusy ? 1 : 0);
+        writeNumber(FIELD_CPU_CONTENTION, info.cpuContention);
+        writeString(FIELD_CPU_RATE, info.cpuRateInfo);
+        writeString(FIELD_THREAD_CPU, info.threadCpuInfo);
+        writeString(FIELD_CPU_CORE_USAGE, info.cpuCoreInfo);
+        writeString(FIELD_MEMORY_USAGE, info.memoryInfo);
+        writeString(FIELD_IO_USAGE, info.ioInfo);
+        writeString(FIELD_SCHED_LATENCY, info.schedInfo);
+        writeString(FIELD_PRESSURE, info.pressureInfo);
+        writeString(FIELD_SAMPLE_LAG, info.sampleLagInfo);
+        writeString(FIELD_BASELINE, info.baselineInfo);
+        writeString(FIELD_FREEZE, info.freezeInfo);
+        writeString(FIELD_LOOPER, info.looperTag);
+        writeString(FIELD_HANDLER, info.handlerInfo);
+        writeStacks(FIELD_STACK, info.threadStackEntries);
+
+        long offset = mLength;
+        mOut.write(CHUNK_RECORD);
+        mLength += 1 + writeVarint(mOut, mRecord.size());
+        mRecord.writeTo(mOut);
+        mLength += mRecord.size();
+        mOut.flush();
+        return offset;
+    }
+
+    /**
+     * Mark a record of this file as deleted, the bytes stay until the file is deleted.
+     *
+     * @param recordOffset offset {@link #append(BlockInfo)} returned for the record
+     */
+    public void delete(long recordOffset) throws IOException {
+        mRecord.reset();
+        writeVarint(mRecord, recordOffset);
+        mOut.write(CHUNK_DELETE);
+        mLength += 1 + writeVarint(mOut, mRecord.size());
+        mRecord.writeTo(mOut);
+        mLength += mRecord.size();
+        mOut.flush();
+    }
+
+    /**
+     * @return current length of the file, including buffered bytes
+     */
+    public long length() {
+        return mLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void writeNumber(int field, long value) throws IOException {
+        writeVarint(mRecord, field << 2 | WIRE_VARINT);
+        writeVarint(mRecord, zigzag(value));
+    }
+
+    private void writeString(int field, String value) throws IOException {
+        //null 不写，读出来也是 null
+        if (value == null) {
+            return;
+        }
+        writeVarint(mRecord, field << 2 | WIRE_STRING);
+        writeVarint(mRecord, intern(value));
+    }
+
+    private void writeStacks(int field, ArrayList<String> entries) throws IOException {
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+        writeVarint(mRecord, field << 2 | WIRE_STACKS);
+        writeVarint(mRecord, entries.size());
+        for (String entry : entries) {
+            //每一行单独进字典，帧在各个采样和各条记录之间共享
+            String[] lines = entry.split(SEPARATOR, -1);
+            writeVarint(mRecord, lines.length);
+            for (String line : lines) {
+                writeVarint(mRecord, intern(line));
+            }
+        }
+    }
+
+    private int intern(String value) throws IOException {
+        Integer id = mDictionary.get(value);
+        if (id != null) {
+            return id;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        mOut.write(CHUNK_STRING);
+        mLength += 1 + writeVarint(mOut, bytes.length);
+        mOut.write(bytes);
+        mLength += bytes.length;
+        id = mDictionary.size();
+        mDictionary.put(value, id);
+        return id;
+    }
+}
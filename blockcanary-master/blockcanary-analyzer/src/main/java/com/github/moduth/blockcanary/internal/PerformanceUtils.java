@@ -15,12 +15,8 @@
  */
 package com.github.moduth.blockcanary.internal;
 
-import android.app.ActivityManager;
-import android.content.Context;
 import android.util.Log;
 
-import com.github.moduth.blockcanary.BlockCanaryInternals;
-
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileFilter;
@@ -28,12 +24,18 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.regex.Pattern;
 
-class PerformanceUtils {
+public class PerformanceUtils {
     private static final String TAG = "PerformanceUtils";
 
     private static int sCoreNum = 0;
     private static long sTotalMemo = 0;
 
+    private static final int MEM_INFO_BUFFER_SIZE = 2048;
+    private static final byte[] MEM_AVAILABLE = ProcFile.key("MemAvailable:");
+    private static final byte[] MEM_FREE = ProcFile.key("MemFree:");
+    private static final byte[] MEM_CACHED = ProcFile.key("Cached:");
+    private static ProcFile sMemInfoFile;
+
     private PerformanceUtils() {
         throw new InstantiationError("Must not instantiate this class");
     }
@@ -47,7 +49,7 @@ class PerformanceUtils {
         class CpuFilter implements FileFilter {
             @Override
             public boolean accept(File pathname) {
-                return Pattern.matches("cpu[0-9]", pathname.getName());
+                return Pattern.matches("cpu[0-9]+", pathname.getName());
             }
         }
 
@@ -67,11 +69,31 @@ class PerformanceUtils {
         return sCoreNum;
     }
 
-    public static long getFreeMemory() {
-        ActivityManager am = (ActivityManager) BlockCanaryInternals.getContext().provideContext().getSystemService(Context.ACTIVITY_SERVICE);
-        ActivityManager.MemoryInfo mi = new ActivityManager.MemoryInfo();
-        am.getMemoryInfo(mi);
-        return mi.availMem / 1024;
+    /**
+     * Get available memory from /proc/meminfo, which avoids the binder call to
+     * ActivityManager for every block.
+     *
+     * @return available memory (in KB), or 0 if unknown
+     */
+    public static synchronized long getFreeMemory() {
+        if (sMemInfoFile == null) {
+            sMemInfoFile = new ProcFile("/proc/meminfo", MEM_INFO_BUFFER_SIZE);
+        }
+        if (!sMemInfoFile.read()) {
+            return 0;
+        }
+        if (sMemInfoFile.seekLine(MEM_AVAILABLE)) {
+            return sMemInfoFile.nextLong();
+        }
+        // Kernels before 3.14 have no MemAvailable, approximate it with MemFree + Cached
+        long free = 0;
+        if (sMemInfoFile.read() && sMemInfoFile.seekLine(MEM_FREE)) {
+            free = sMemInfoFile.nextLong();
+            if (sMemInfoFile.seekLine(MEM_CACHED)) {
+                free += sMemInfoFile.nextLong();
+            }
+        }
+        return free;
     }
 
     public static long getTotalMemory() {
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary.internal;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * Reusable reader for small procfs/sysfs files.
+ * <p>
+ * The file is kept open and re-read from offset 0 into a pre-allocated buffer on every
+ * {@link #read()}, then parsed in place through a cursor, so sampling does not create
+ * {@code String}s, readers or boxed numbers. Only the first {@code bufferSize} bytes are read.
+ * </p>
+ *
+ * 可复用的 /proc 文件读取器，读取和解析都不分配对象
+ */
+public final class ProcFile {
+
+    private static final String TAG = "ProcFile";
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final String mPath;
+    private final byte[] mBuffer;
+    private RandomAccessFile mFile;
+    private int mLength = 0;
+    private int mPos = 0;
+    //打开失败过就不再重试，比如文件不存在
+    private boolean mUnavailable = false;
+
+    /**
+     * Encode a line key like {@code "MemFree:"} for {@link #startsWith(byte[])} and
+     * {@link #seekLine(byte[])}. procfs is plain ASCII whatever the default charset is.
+     */
+    public static byte[] key(String text) {
+        return text.getBytes(US_ASCII);
+    }
+
+    public ProcFile(String path) {
+        this(path, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ProcFile(String path, int bufferSize) {
+        mPath = path;
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Re-read the file content and reset the cursor to the beginning.
+     *
+     * @return false if the file can not be read
+     */
+    public boolean read() {
+        mLength = 0;
+        mPos = 0;
+        if (mUnavailable) {
+            return false;
+        }
+        try {
+            if (mFile == null) {
+                mFile = new RandomAccessFile(mPath, "r");
+            }
+            mFile.seek(0);
+            int count;
+            while (mLength < mBuffer.length
+                    && (count = mFile.read(mBuffer, mLength, mBuffer.length - mLength)) > 0) {
+                mLength += count;
+            }
+            return mLength > 0;
+        } catch (IOException e) {
+            if (mFile == null) {
+                mUnavailable = true;
+            }
+            Log.w(TAG, "read " + mPath + " failed", e);
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * @return whether the file could be opened at least once or has not been tried yet
+     */
+    public boolean isAvailable() {
+        return !mUnavailable;
+    }
+
+    public void close() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "close " + mPath + " failed", e);
+            }
+            mFile = null;
+        }
+    }
+
+    public boolean hasMore() {
+        return mPos < mLength;
+    }
+
+    /**
+     * Advance the cursor by the given number of bytes.
+     */
+    public void skip(int count) {
+        mPos = Math.min(mLength, mPos + count);
+    }
+
+    /**
+     * Skip spaces and tabs, but not line breaks.
+     */
+    public void skipSpaces() {
+        while (mPos < mLength && (mBuffer[mPos] == ' ' || mBuffer[mPos] == '\t')) {
+            mPos++;
+        }
+    }
+
+    /**
+     * Skip the given number of whitespace separated fields on the current line.
+     */
+    public void skipFields(int count) {
+        for (int i = 0; i < count; i++) {
+            skipSpaces();
+            while (mPos < mLength && !isSpace(mBuffer[mPos])) {
+                mPos++;
+            }
+        }
+    }
+
+    /**
+     * Move the cursor to the beginning of the next line.
+     *
+     * @return false if there is no next line
+     */
+    public boolean nextLine() {
+        while (mPos < mLength && mBuffer[mPos] != '\n') {
+            mPos++;
+        }
+        if (mPos < mLength) {
+            mPos++;
+            return mPos < mLength;
+        }
+        return false;
+    }
+
+    /**
+     * Whether the current position starts with the given ASCII prefix.
+     */
+    public boolean startsWith(byte[] prefix) {
+        if (mPos + prefix.length > mLength) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (mBuffer[mPos + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Move the cursor right after the first line starting with the given key, searching from
+     * the current line.
+     *
+     * @return false if no line starts with key, the cursor is then at the end
+     */
+    public boolean seekLine(byte[] key) {
+        do {
+            if (startsWith(key)) {
+                mPos += key.length;
+                return true;
+            }
+        } while (nextLine());
+        mPos = mLength;
+        return false;
+    }
+
+    /**
+     * Move the cursor right after the last occurrence of the given byte, used to step over
+     * the {@code comm} field of {@code /proc/<pid>/stat} which may itself contain spaces and
+     * parentheses.
+     *
+     * @return false if the byte is not found
+     */
+    public boolean seekAfterLast(byte b) {
+        for (int i = mLength - 1; i >= mPos; i--) {
+            if (mBuffer[i] == b) {
+                mPos = i + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse the next integer field on the current line.
+     *
+     * @return parsed value, or 0 if the field is missing or not a number
+     */
+    public long nextLong() {
+        long value = parseLong();
+        skipRestOfField();
+        return value;
+    }
+
+    /**
+     * Parse the next integer and step over the given delimiter right after it, like the
+     * {@code running/total} field of {@code /proc/loadavg}.
+     *
+     * @return parsed value, or 0 if missing or not a number
+     */
+    public long nextLong(byte delimiter) {
+        long value = parseLong();
+        if (mPos < mLength && mBuffer[mPos] == delimiter) {
+            mPos++;
+        }
+        return value;
+    }
+
+    /**
+     * Parse the next decimal field as a fixed point number, like {@code 1.25} of
+     * {@code /proc/loadavg}, which is 125 with 2 decimals.
+     *
+     * @param decimals number of decimal digits to keep
+     * @return parsed value multiplied by 10^decimals, or 0 if missing or not a number
+     */
+    public long nextDecimal(int decimals) {
+        skipSpaces();
+        boolean negative = mPos < mLength && mBuffer[mPos] == '-';
+        if (negative) {
+            mPos++;
+        }
+        long value = parseLong();
+        boolean fraction = mPos < mLength && mBuffer[mPos] == '.';
+        if (fraction) {
+            mPos++;
+        }
+        for (int i = 0; i < decimals; i++) {
+            int digit = fraction && mPos < mLength ? mBuffer[mPos] - '0' : 0;
+            if (digit < 0 || digit > 9) {
+                digit = 0;
+                fraction = false;
+            } else if (fraction) {
+                mPos++;
+            }
+            value = value * 10 + digit;
+        }
+        skipRestOfField();
+        return negative ? -value : value;
+    }
+
+    /**
+     * Text between the first {@code open} byte after the cursor and the last {@code close} byte,
+     * like the {@code comm} field of {@code /proc/<pid>/stat}. This allocates, so only call it
+     * when the value is not cached yet.
+     *
+     * @return the text, or null if not found
+     */
+    public String textBetween(byte open, byte close) {
+        int from = mPos;
+        while (from < mLength && mBuffer[from] != open) {
+            from++;
+        }
+        int to = mLength - 1;
+        while (to > from && mBuffer[to] != close) {
+            to--;
+        }
+        if (to <= from) {
+            return null;
+        }
+        return new String(mBuffer, from + 1, to - from - 1);
+    }
+
+    private long parseLong() {
+        skipSpaces();
+        boolean negative = false;
+        if (mPos < mLength && mBuffer[mPos] == '-') {
+            negative = true;
+            mPos++;
+        }
+        long value = 0;
+        while (mPos < mLength) {
+            int digit = mBuffer[mPos] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            value = value * 10 + digit;
+            mPos++;
+        }
+        return negative ? -value : value;
+    }
+
+    //跳过字段剩下的非数字部分，比如单位
+    private void skipRestOfField() {
+        while (mPos < mLength && !isSpace(mBuffer[mPos])) {
+            mPos++;
+        }
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n';
+    }
+}
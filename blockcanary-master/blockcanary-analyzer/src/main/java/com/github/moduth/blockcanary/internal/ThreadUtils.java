@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary.internal;
+
+public class ThreadUtils {
+
+    private ThreadUtils() {
+        throw new InstantiationError("Must not instantiate this class");
+    }
+
+    /**
+     * Live java threads of the process, without dumping their stacks like
+     * {@link Thread#getAllStackTraces()} does.
+     *
+     * @param max max number of threads to return
+     * @return threads, at most max of them
+     */
+    public static Thread[] getAllThreads(int max) {
+        ThreadGroup root = Thread.currentThread().getThreadGroup();
+        while (root.getParent() != null) {
+            root = root.getParent();
+        }
+        //多留一些位置给枚举期间新建的线程
+        Thread[] threads = new Thread[root.activeCount() + 8];
+        int count = Math.min(max, root.enumerate(threads, true));
+        Thread[] result = new Thread[count];
+        System.arraycopy(threads, 0, result, 0, count);
+        return result;
+    }
+}
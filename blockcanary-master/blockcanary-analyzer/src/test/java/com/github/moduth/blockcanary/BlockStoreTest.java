@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import com.github.moduth.blockcanary.internal.BlockInfo;
+import com.github.moduth.blockcanary.internal.BlockLogReader;
+import com.github.moduth.blockcanary.internal.BlockLogWriter;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BlockStoreTest {
+
+    //每条记录都带一段不重复的大字符串，约 8 条记录写满一个段
+    private static final int PAYLOAD_SIZE = 32 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+
+    @BeforeClass
+    public static void setUpContext() {
+        //BlockInfo 的静态初始化要用到
+        BlockCanaryInternals.setContext(new BlockCanaryContext());
+    }
+
+    @Before
+    public void setUp() {
+        mDirectory = mFolder.getRoot();
+    }
+
+    @Test
+    public void rolloverAtSegmentSize() throws IOException {
+        BlockStore store = new BlockStore(mDirectory);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            ids.add(store.append(block(i, PAYLOAD_SIZE), 1000 + i));
+        }
+
+        File[] segments = store.getSegments();
+        assertEquals(3, segments.length);
+        int records = 0;
+        for (int i = 0; i < segments.length; i++) {
+            assertEquals("segment-" + i + ".blk", segments[i].getName());
+            //封口的段刚好超过段大小，最后一条记录不会被拆开
+            if (i < segments.length - 1) {
+                assertTrue(segments[i].length() >= BlockStore.SEGMENT_SIZE);
+                assertTrue(segments[i].length() < BlockStore.SEGMENT_SIZE + 2 * PAYLOAD_SIZE);
+            }
+            records += liveCosts(segments[i]).size();
+        }
+        assertEquals(20, records);
+        //id 的高 32 位是段序号，随写入递增
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(ids.get(i) > ids.get(i - 1));
+        }
+        assertEquals(2, ids.get(ids.size() - 1) >>> 32);
+    }
+
+    @Test
+    public void tombstonesSurviveReopen() throws IOException {
+        BlockStore store = new BlockStore(mDirectory);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            ids.add(store.append(block(i, PAYLOAD_SIZE), 1000 + i));
+        }
+        assertEquals(2, store.getSegments().length);
+        //正在写的段
+        store.delete(ids.get(11));
+
+        //重新打开后删除已经封口的段里的记录
+        store = new BlockStore(mDirectory);
+        store.delete(ids.get(1));
+        store.append(block(12, 0), 2000);
+
+        store = new BlockStore(mDirectory);
+        File[] segments = store.getSegments();
+        List<Long> costs = new ArrayList<>();
+        for (File segment : segments) {
+            costs.addAll(liveCosts(segment));
+        }
+        assertEquals(11, costs.size());
+        assertFalse(costs.contains(1L));
+        assertFalse(costs.contains(11L));
+        assertTrue(costs.contains(12L));
+    }
+
+    @Test
+    public void deleteOfMissingSegmentIsIgnored() throws IOException {
+        BlockStore store = new BlockStore(mDirectory);
+        long id = store.append(block(0, 0), 1000);
+        store.deleteAll();
+        store.delete(id);
+        store.delete(-1);
+
+        assertEquals(0, mDirectory.list().length);
+    }
+
+    @Test
+    public void retentionByAge() throws IOException {
+        BlockStore store = new BlockStore(mDirectory);
+        for (int i = 0; i < 12; i++) {
+            store.append(block(i, PAYLOAD_SIZE), 1000 + i);
+        }
+        File[] segments = store.getSegments();
+        assertEquals(2, segments.length);
+        long now = System.currentTimeMillis();
+        assertTrue(segments[0].setLastModified(now - 3 * 24 * 3600 * 1000L));
+
+        store.deleteObsolete(now - 2 * 24 * 3600 * 1000L);
+
+        assertFalse(segments[0].exists());
+        File[] left = store.getSegments();
+        assertEquals(1, left.length);
+        assertEquals(segments[1], left[0]);
+    }
+
+    @Test
+    public void retentionByMaxSegments() throws IOException {
+        BlockStore store = new BlockStore(mDirectory);
+        long last = 0;
+        while (last >>> 32 < BlockStore.MAX_SEGMENTS + 2) {
+            last = store.append(block(0, PAYLOAD_SIZE), 1000);
+        }
+
+        File[] segments = store.getSegments();
+        assertEquals(BlockStore.MAX_SEGMENTS, segments.length);
+        assertEquals(BlockStore.MAX_SEGMENTS, mDirectory.list().length);
+        //最老的段被删掉了
+        assertEquals("segment-3.blk", segments[0].getName());
+        assertEquals("segment-" + (last >>> 32) + ".blk",
+                segments[segments.length - 1].getName());
+    }
+
+    @Test
+    public void sequenceNotReusedAfterDeleteAll() throws IOException {
+        BlockStore store = new BlockStore(mDirectory);
+        long first = store.append(block(0, 0), 1000);
+        store.deleteAll();
+        assertEquals(0, store.getSegments().length);
+
+        long second = store.append(block(1, 0), 2000);
+        assertEquals(0, first >>> 32);
+        assertEquals(1, second >>> 32);
+        //删掉的卡顿 id 不会指到新记录上
+        store.delete(first);
+        assertEquals(1, liveCosts(store.getSegments()[0]).size());
+    }
+
+    @Test
+    public void migrationOrder() throws IOException {
+        //旧版本的文本日志和单条二进制日志，按修改时间导入
+        writeText("looper-b.log", 20, 3000);
+        writeText("looper-a.log", 10, 1000);
+        BlockLogWriter writer = BlockLogWriter.open(new File(mDirectory, "looper-c.blk"));
+        writer.append(block(30, 0), 5000);
+        writer.append(block(31, 0), 0);
+        writer.close();
+        assertTrue(new File(mDirectory, "looper-c.blk").setLastModified(2000));
+        File latency = new File(mDirectory, "latency.txt");
+        assertTrue(latency.createNewFile());
+
+        BlockStore store = new BlockStore(mDirectory);
+
+        File[] segments = store.getSegments();
+        assertEquals(1, segments.length);
+        List<Long> costs = new ArrayList<>();
+        List<Long> saveTimes = new ArrayList<>();
+        BlockLogReader reader = BlockLogReader.open(segments[0]);
+        try {
+            for (int i = 0; i < reader.getRecordCount(); i++) {
+                costs.add(reader.read(i, new BlockInfo()).timeCost);
+                saveTimes.add(reader.getSaveTime(i));
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(list(10, 30, 31, 20), costs);
+        //记录自己的保存时间优先，没有时用文件的修改时间
+        assertEquals(list(1000, 5000, 2000, 3000), saveTimes);
+        assertFalse(new File(mDirectory, "looper-a.log").exists());
+        assertFalse(new File(mDirectory, "looper-b.log").exists());
+        assertFalse(new File(mDirectory, "looper-c.blk").exists());
+        assertTrue(latency.exists());
+    }
+
+    @Test
+    public void failedImportIsKept() throws IOException {
+        //不支持的版本号，打开会失败
+        File broken = new File(mDirectory, "looper-x.blk");
+        write(broken, new byte[]{'B', 'C', 'L', 'G', 99});
+        writeText("looper-a.log", 10, 1000);
+
+        BlockStore store = new BlockStore(mDirectory);
+
+        assertTrue(broken.exists());
+        assertFalse(new File(mDirectory, "looper-a.log").exists());
+        assertEquals(list(10), liveCosts(store.getSegments()[0]));
+    }
+
+    @Test
+    public void malformedTextLogIsNotImported() throws IOException {
+        long now = System.currentTimeMillis();
+        writeText("looper-a.log", "garbage" + BlockInfo.SEPARATOR, now);
+        writeText("looper-b.log", BlockInfo.KEY_TIME_COST_START + BlockInfo.KV + "01-01"
+                + BlockInfo.SEPARATOR + BlockInfo.KEY_TIME_COST + BlockInfo.KV + "12ms"
+                + BlockInfo.SEPARATOR, now);
+
+        BlockStore store = new BlockStore(mDirectory);
+
+        assertEquals(0, store.getSegments().length);
+        assertTrue(new File(mDirectory, "looper-a.log").exists());
+        assertTrue(new File(mDirectory, "looper-b.log").exists());
+    }
+
+    @Test
+    public void obsoleteFailedImportIsDeleted() throws IOException {
+        long obsolete = System.currentTimeMillis() - LogWriter.OBSOLETE_DURATION - 1000;
+        writeText("looper-a.log", "garbage" + BlockInfo.SEPARATOR, obsolete);
+        File broken = new File(mDirectory, "looper-x.blk");
+        write(broken, new byte[]{'B', 'C', 'L', 'G', 99});
+        assertTrue(broken.setLastModified(obsolete));
+
+        new BlockStore(mDirectory);
+
+        assertFalse(new File(mDirectory, "looper-a.log").exists());
+        assertFalse(broken.exists());
+    }
+
+    @Test
+    public void exportedTextCanBeImported() throws IOException {
+        BlockInfo info = new BlockInfo();
+        info.timeCost = 42;
+        info.timeStart = "01-01 00:00:00.000";
+        //采样得到的 cpu 信息每行都以分隔符结尾
+        info.cpuRateInfo = "cpu:10%" + BlockInfo.SEPARATOR;
+        String text = info.flushString().toString();
+        assertTrue(LogWriter.writeText(new File(mDirectory, "looper-a.log"), text, 1000));
+
+        BlockStore store = new BlockStore(mDirectory);
+
+        BlockLogReader reader = BlockLogReader.open(store.getSegments()[0]);
+        try {
+            assertEquals(text, reader.read(0, new BlockInfo()).flushString().toString());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void textLogCpuRate() throws IOException {
+        writeText("looper-a.log", 10, 1000);
+
+        BlockStore store = new BlockStore(mDirectory);
+
+        BlockLogReader reader = BlockLogReader.open(store.getSegments()[0]);
+        try {
+            assertEquals("cpu:10%" + BlockInfo.SEPARATOR + "cpu:20%" + BlockInfo.SEPARATOR,
+                    reader.read(0, new BlockInfo()).cpuRateInfo);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static BlockInfo block(int timeCost, int payloadSize) {
+        BlockInfo info = new BlockInfo();
+        info.timeCost = timeCost;
+        StringBuilder sb = new StringBuilder(payloadSize + 20);
+        //加上随机前缀，避免字典把不同记录的大字符串合并
+        sb.append(System.nanoTime()).append(':');
+        while (sb.length() < payloadSize) {
+            sb.append('x');
+        }
+        info.cpuRateInfo = sb.toString();
+        return info;
+    }
+
+    private static List<Long> liveCosts(File segment) throws IOException {
+        List<Long> costs = new ArrayList<>();
+        BlockLogReader reader = BlockLogReader.open(segment);
+        try {
+            for (int i = 0; i < reader.getRecordCount(); i++) {
+                if (!reader.isDeleted(i)) {
+                    costs.add(reader.read(i, new BlockInfo()).timeCost);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return costs;
+    }
+
+    private static List<Long> list(long... values) {
+        List<Long> list = new ArrayList<>();
+        for (long value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private void writeText(String name, long timeCost, long lastModified) throws IOException {
+        String text = BlockInfo.SEPARATOR + "**********************" + BlockInfo.SEPARATOR
+                + "2016-01-01 00:00:00(write log time)" + BlockInfo.SEPARATOR
+                + BlockInfo.SEPARATOR
+                + BlockInfo.KEY_QUA + BlockInfo.KV + "release" + BlockInfo.SEPARATOR
+                + BlockInfo.KEY_TIME_COST_START + BlockInfo.KV + "01-01 00:00:00.000"
+                + BlockInfo.SEPARATOR
+                + BlockInfo.KEY_TIME_COST + BlockInfo.KV + timeCost + BlockInfo.SEPARATOR
+                + BlockInfo.KEY_CPU_RATE + BlockInfo.KV + "cpu:10%" + BlockInfo.SEPARATOR
+                + "cpu:20%" + BlockInfo.SEPARATOR
+                + BlockInfo.SEPARATOR;
+        writeText(name, text, lastModified);
+    }
+
+    private void writeText(String name, String text, long lastModified) throws IOException {
+        File file = new File(mDirectory, name);
+        write(file, text.getBytes("UTF-8"));
+        assertTrue(file.setLastModified(lastModified));
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
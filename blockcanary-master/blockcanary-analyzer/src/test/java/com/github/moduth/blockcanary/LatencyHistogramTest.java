@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for (int value = 0; value < 8; value++) {
+            assertEquals(value, LatencyHistogram.indexOf(value));
+            assertEquals(value, LatencyHistogram.highestValueOf(value));
+        }
+        assertEquals(0, LatencyHistogram.indexOf(-5));
+    }
+
+    @Test
+    public void bucketsAreLogLinear() {
+        assertEquals(8, LatencyHistogram.indexOf(8));
+        assertEquals(15, LatencyHistogram.indexOf(15));
+        //16 以上每个桶宽 2
+        assertEquals(16, LatencyHistogram.indexOf(16));
+        assertEquals(16, LatencyHistogram.indexOf(17));
+        assertEquals(17, LatencyHistogram.highestValueOf(16));
+        assertEquals(17, LatencyHistogram.indexOf(18));
+    }
+
+    @Test
+    public void everyValueFallsBetweenItsBucketBounds() {
+        for (long value = 0; value < (1 << 21); value++) {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueOf(index);
+            long lowest = index == 0 ? 0 : LatencyHistogram.highestValueOf(index - 1) + 1;
+            assertTrue(value + " above bucket " + index, value <= highest);
+            assertTrue(value + " below bucket " + index, value >= lowest);
+            //桶宽不超过下界的 12.5%
+            assertTrue("bucket " + index + " too wide", highest - lowest <= lowest / 8);
+        }
+    }
+
+    @Test
+    public void largeValuesGoToTheLastBucket() {
+        int last = LatencyHistogram.BUCKET_COUNT - 1;
+        assertEquals(last, LatencyHistogram.indexOf((1 << 21) - 1));
+        assertEquals(last, LatencyHistogram.indexOf(1 << 21));
+        assertEquals(last, LatencyHistogram.indexOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void snapshotPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(millis);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.count);
+        //取桶的上界：50 在 48..51，90 在 88..95
+        assertEquals(51, snapshot.p50);
+        assertEquals(95, snapshot.p90);
+        //99 和 100 都在 96..103，被记录到的最大值截断
+        assertEquals(100, snapshot.p99);
+        assertEquals(100, snapshot.max);
+        assertEquals("count:100 p50:51ms p90:95ms p99:100ms max:100ms", snapshot.toString());
+    }
+
+    @Test
+    public void snapshotOfAnInterval() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(millis);
+        }
+        long[] base = histogram.copyCounts();
+        for (int i = 0; i < 10; i++) {
+            histogram.record(1000);
+        }
+
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram.Snapshot(
+                histogram.copyCounts(), base, histogram.getMax());
+        assertEquals(10, snapshot.count);
+        assertEquals(1000, snapshot.p50);
+        assertEquals(1000, snapshot.p99);
+        assertEquals(1000, snapshot.max);
+    }
+
+    @Test
+    public void emptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.p50);
+        assertEquals(0, snapshot.p99);
+        assertEquals(0, snapshot.max);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class LooperMonitorTest {
+
+    private static final String DISPATCH =
+            ">>>>> Dispatching to Handler (android.app.ActivityThread$H) {b1d0b5c} null: 159";
+    private static final String FINISHED =
+            "<<<<< Finished to Handler (android.app.ActivityThread$H) {b1d0b5c} null";
+
+    private static final LooperMonitor.BlockListener LISTENER = new LooperMonitor.BlockListener() {
+        @Override
+        public void onBlockEvent(long realStartTime, long realTimeEnd, long threadTimeStart,
+                                 long threadTimeEnd, MessageSource source) {
+        }
+
+        @Override
+        public void onFreezeEvent(long realTimeStart, long realTimeNow, MessageSource source) {
+        }
+    };
+
+    @Test
+    public void printlnDoesNotAllocate() {
+        //懒启动，阈值足够大，只走主线程上的快路径
+        LooperMonitor monitor = new LooperMonitor(LISTENER, newScheduler(), 60 * 1000, false,
+                true, 0);
+
+        assertEquals("bytes allocated by 10000 dispatches", 0, measureAllocation(monitor));
+        assertEquals(1, monitor.getMessageSources().size());
+    }
+
+    @Test
+    public void printlnDoesNotAllocateWithDefaultConfig() {
+        //默认配置：每条消息都启动和停止一次采样调度器
+        SamplingScheduler scheduler = newScheduler();
+        LooperMonitor monitor = new LooperMonitor(LISTENER, scheduler, 60 * 1000, false, false, 0);
+
+        assertEquals("bytes allocated by 10000 dispatches", 0, measureAllocation(monitor));
+        assertFalse(monitor.isDumping());
+        assertFalse(scheduler.isSampling());
+    }
+
+    private static SamplingScheduler newScheduler() {
+        SamplingScheduler scheduler = new SamplingScheduler(false, 0, 0, 1f);
+        scheduler.register(new AbstractSampler(300) {
+            @Override
+            void doSample(long time) {
+            }
+        });
+        return scheduler;
+    }
+
+    /**
+     * @return bytes allocated by the current thread for 10000 dispatches, after warming up
+     */
+    private static long measureAllocation(LooperMonitor monitor) {
+        //先让 JIT 编译完
+        for (int i = 0; i < 200000; i++) {
+            monitor.println(DISPATCH);
+            monitor.println(FINISHED);
+        }
+
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10000; i++) {
+            monitor.println(DISPATCH);
+            monitor.println(FINISHED);
+        }
+        return threadMXBean.getThreadAllocatedBytes(threadId) - before;
+    }
+}
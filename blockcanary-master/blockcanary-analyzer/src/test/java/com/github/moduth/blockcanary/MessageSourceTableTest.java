@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MessageSourceTableTest {
+
+    private final MessageSourceTable mTable = new MessageSourceTable();
+
+    @Test
+    public void defaultHandlerWithNullCallback() {
+        MessageSource source = mTable.lookup(
+                ">>>>> Dispatching to Handler (android.app.ActivityThread$H) {b1d0b5c} null: 159");
+        assertEquals("android.app.ActivityThread$H", source.getHandlerClass());
+        assertNull(source.getCallbackClass());
+        assertEquals(159, source.getWhat());
+
+        //另一个 Handler 实例，hash 不同也是同一个来源
+        assertSame(source, mTable.lookup(
+                ">>>>> Dispatching to Handler (android.app.ActivityThread$H) {3c4d5e6} null: 159"));
+        assertNotSame(source, mTable.lookup(
+                ">>>>> Dispatching to Handler (android.app.ActivityThread$H) {b1d0b5c} null: 160"));
+    }
+
+    @Test
+    public void lambdaCallback() {
+        MessageSource source = mTable.lookup(">>>>> Dispatching to Handler (android.os.Handler) "
+                + "{1a2b3c} com.example.Foo$$Lambda$1/123456@9f8e7d: 0");
+        assertEquals("android.os.Handler", source.getHandlerClass());
+        assertEquals("com.example.Foo$$Lambda$1/123456", source.getCallbackClass());
+        assertEquals(0, source.getWhat());
+
+        assertSame(source, mTable.lookup(">>>>> Dispatching to Handler (android.os.Handler) "
+                + "{1a2b3c} com.example.Foo$$Lambda$1/123456@77aa01: 0"));
+    }
+
+    @Test
+    public void handlerWithOverriddenToString() {
+        MessageSource source = mTable.lookup(
+                ">>>>> Dispatching to custom handler [state=idle] com.example.Task@1f: 3");
+        //toString() 可能带空格，callback 前的内容都算作 Handler
+        assertEquals("custom handler [state=idle]", source.getHandlerClass());
+        assertEquals("com.example.Task", source.getCallbackClass());
+        assertEquals(3, source.getWhat());
+    }
+
+    @Test
+    public void negativeWhat() {
+        MessageSource source = mTable.lookup(
+                ">>>>> Dispatching to Handler (com.example.MyHandler) {42} null: -1");
+        assertEquals("com.example.MyHandler", source.getHandlerClass());
+        assertEquals(-1, source.getWhat());
+        assertNotSame(source, mTable.lookup(
+                ">>>>> Dispatching to Handler (com.example.MyHandler) {42} null: 1"));
+    }
+
+    @Test
+    public void overflowIntoOther() {
+        MessageSource first = mTable.lookup(line(0));
+        for (int i = 1; i < 256; i++) {
+            mTable.lookup(line(i));
+        }
+        MessageSource other = mTable.lookup(line(256));
+        assertEquals("other", other.getHandlerClass());
+        assertSame(other, mTable.lookup(line(1000)));
+        //已知的来源照常命中
+        assertSame(first, mTable.lookup(line(0)));
+
+        first.record(10);
+        other.record(50);
+        other.record(50);
+        List<MessageSource> sources = mTable.getSources();
+        assertEquals(257, sources.size());
+        //按总耗时排序
+        assertEquals("other", sources.get(0).getHandlerClass());
+        assertEquals(100, sources.get(0).getTotalMillis());
+        assertEquals(2, sources.get(0).getCount());
+        assertEquals("com.example.Handler0", sources.get(1).getHandlerClass());
+    }
+
+    @Test
+    public void otherIsOnlyListedOnceUsed() {
+        mTable.lookup(line(0));
+        assertEquals(1, mTable.getSources().size());
+    }
+
+    private static String line(int i) {
+        return ">>>>> Dispatching to Handler (com.example.Handler" + i + ") {1} null: 1";
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class PressureSamplerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mPressureDir;
+    private File mLoadAvg;
+    private PressureSampler mSampler;
+
+    @Before
+    public void setUp() throws IOException {
+        mPressureDir = new File(mFolder.getRoot(), "pressure");
+        mLoadAvg = new File(mFolder.getRoot(), "loadavg");
+        mSampler = new PressureSampler(100, mPressureDir.getPath(), mLoadAvg.getPath());
+    }
+
+    @Test
+    public void pressurePresent() throws IOException {
+        mPressureDir.mkdir();
+        //老内核上 cpu 没有 full 行
+        write("cpu", "some avg10=1.00 avg60=0.50 avg300=0.10 total=1000000\n");
+        write("io", "some avg10=0.00 avg60=0.00 avg300=0.00 total=2000000\n"
+                + "full avg10=0.00 avg60=0.00 avg300=0.00 total=500000\n");
+        write("memory", "some avg10=0.00 avg60=0.00 avg300=0.00 total=0\n"
+                + "full avg10=0.00 avg60=0.00 avg300=0.00 total=0\n");
+        write(mLoadAvg, "1.00 1.00 1.00 1/1000 100\n");
+        mSampler.doSample(1000);
+
+        //1000ms 窗口内 cpu 停顿 350ms，io 停顿 120ms，其中 40ms 全部任务都在等
+        write("cpu", "some avg10=1.00 avg60=0.50 avg300=0.10 total=1350000\n");
+        write("io", "some avg10=0.00 avg60=0.00 avg300=0.00 total=2120000\n"
+                + "full avg10=0.00 avg60=0.00 avg300=0.00 total=540000\n");
+        write(mLoadAvg, "6.20 4.10 3.05 5/1024 6789\n");
+        mSampler.doSample(2000);
+
+        assertEquals("cpu some:35% io some:12% full:4% memory some:0% full:0%"
+                        + " load:6.20/4.10/3.05 tasks:5/1024",
+                mSampler.getPressureInfo(1000, 2000));
+    }
+
+    @Test
+    public void pressureAbsentFallsBackToLoadAvg() throws IOException {
+        write(mLoadAvg, "0.50 0.40 0.30 2/345 6789\n");
+        mSampler.doSample(1000);
+        mSampler.doSample(2000);
+
+        assertEquals("load:0.50/0.40/0.30 tasks:2/345", mSampler.getPressureInfo(1000, 2000));
+    }
+
+    @Test
+    public void nothingReadable() {
+        mSampler.doSample(1000);
+        mSampler.doSample(2000);
+
+        assertEquals("", mSampler.getPressureInfo(1000, 2000));
+    }
+
+    @Test
+    public void malformedLinesAreSkipped() throws IOException {
+        mPressureDir.mkdir();
+        //少了一个字段，total= 不在预期位置
+        write("cpu", "some avg10=0.00 avg60=0.00 total=1000\n");
+        write("io", "garbage\n");
+        write("memory", "some avg10=0.00 avg60=0.00 avg300=0.00 total=0\n"
+                + "full avg10=0.00 avg60=0.00 avg300=0.00 oops=0\n");
+        mSampler.doSample(1000);
+        write("memory", "some avg10=0.00 avg60=0.00 avg300=0.00 total=100000\n"
+                + "full avg10=0.00 avg60=0.00 avg300=0.00 oops=0\n");
+        mSampler.doSample(2000);
+
+        assertEquals("memory some:10%", mSampler.getPressureInfo(1000, 2000));
+    }
+
+    @Test
+    public void noSnapshotInWindow() throws IOException {
+        write(mLoadAvg, "0.50 0.40 0.30 2/345 6789\n");
+        mSampler.doSample(1000);
+
+        assertEquals("", mSampler.getPressureInfo(1500, 2000));
+    }
+
+    private void write(String resource, String content) throws IOException {
+        write(new File(mPressureDir, resource), content);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
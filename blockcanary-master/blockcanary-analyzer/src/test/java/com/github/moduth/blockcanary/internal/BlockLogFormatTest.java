@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary.internal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.readVarint;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.unzigzag;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.writeVarint;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.zigzag;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class BlockLogFormatTest {
+
+    @Test
+    public void varintEdgeValues() throws IOException {
+        long[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE, -1,
+                Long.MIN_VALUE};
+        int[] sizes = {1, 1, 1, 2, 2, 3, 5, 9, 10, 10};
+        for (int i = 0; i < values.length; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(sizes[i], writeVarint(out, values[i]));
+            assertEquals(sizes[i], out.size());
+
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            assertEquals(values[i], readVarint(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+    }
+
+    @Test
+    public void varintByteLayout() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, 300);
+        byte[] bytes = out.toByteArray();
+        assertEquals(2, bytes.length);
+        assertEquals((byte) 0xAC, bytes[0]);
+        assertEquals((byte) 0x02, bytes[1]);
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void truncatedVarint() throws IOException {
+        readVarint(ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80}));
+    }
+
+    @Test(expected = IOException.class)
+    public void overlongVarint() throws IOException {
+        byte[] bytes = new byte[11];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) 0x80;
+        }
+        readVarint(ByteBuffer.wrap(bytes));
+    }
+
+    @Test
+    public void zigzagEdgeValues() {
+        assertEquals(0, zigzag(0));
+        assertEquals(1, zigzag(-1));
+        assertEquals(2, zigzag(1));
+        assertEquals(3, zigzag(-2));
+        assertEquals(0xFFFFFFFFFFFFFFFEL, zigzag(Long.MAX_VALUE));
+        assertEquals(0xFFFFFFFFFFFFFFFFL, zigzag(Long.MIN_VALUE));
+
+        long[] values = {0, 1, -1, 63, -64, 64, -65, Integer.MIN_VALUE, Long.MAX_VALUE,
+                Long.MIN_VALUE};
+        for (long value : values) {
+            assertEquals(value, unzigzag(zigzag(value)));
+        }
+    }
+
+    @Test
+    public void smallNegativeNumbersStayShort() throws IOException {
+        //-1 是 cpuContention 的默认值，zigzag 以后只占一个字节
+        assertEquals(1, writeVarint(new ByteArrayOutputStream(), zigzag(-1)));
+        assertEquals(1, writeVarint(new ByteArrayOutputStream(), zigzag(-64)));
+        assertEquals(2, writeVarint(new ByteArrayOutputStream(), zigzag(-65)));
+    }
+}
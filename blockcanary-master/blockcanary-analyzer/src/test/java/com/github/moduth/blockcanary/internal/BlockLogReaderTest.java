@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary.internal;
+
+import com.github.moduth.blockcanary.BlockCanaryContext;
+import com.github.moduth.blockcanary.BlockCanaryInternals;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.CHUNK_RECORD;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.FIELD_TIME_COST;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.WIRE_STACKS;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.WIRE_STRING;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.WIRE_VARINT;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.writeVarint;
+import static com.github.moduth.blockcanary.internal.BlockLogFormat.zigzag;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockLogReaderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpContext() {
+        //BlockInfo 的静态初始化要用到
+        BlockCanaryInternals.setContext(new BlockCanaryContext());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = mFolder.newFile("log.blk");
+        BlockLogWriter writer = BlockLogWriter.open(file);
+        long first = writer.append(block(1), 1000);
+        long second = writer.append(block(2), 2000);
+        writer.close();
+
+        BlockLogReader reader = BlockLogReader.open(file);
+        try {
+            assertEquals(2, reader.getRecordCount());
+            assertEquals(first, reader.getRecordOffset(0));
+            assertEquals(second, reader.getRecordOffset(1));
+            assertEquals(1, reader.indexOf(second));
+            assertEquals(-1, reader.indexOf(second + 1));
+            assertEquals(2000, reader.getSaveTime(1));
+            assertEquals(file.length(), reader.getValidLength());
+            assertBlock(2, reader.read(1, new BlockInfo()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void tornTailIsDroppedAndReappended() throws IOException {
+        File file = mFolder.newFile("log.blk");
+        BlockLogWriter writer = BlockLogWriter.open(file);
+        writer.append(block(1), 1000);
+        //第二条记录新用到的字符串块在它前面，是完整的
+        long validLength = writer.append(block(2), 2000);
+        writer.close();
+        //进程在写第二条记录时被杀
+        truncate(file, file.length() - 3);
+
+        BlockLogReader reader = BlockLogReader.open(file);
+        assertEquals(1, reader.getRecordCount());
+        assertEquals(validLength, reader.getValidLength());
+        reader.close();
+
+        writer = BlockLogWriter.open(file);
+        assertEquals(validLength, file.length());
+        long offset = writer.append(block(3), 3000);
+        writer.close();
+
+        reader = BlockLogReader.open(file);
+        try {
+            assertEquals(2, reader.getRecordCount());
+            assertEquals(offset, reader.getRecordOffset(1));
+            assertBlock(1, reader.read(0, new BlockInfo()));
+            assertBlock(3, reader.read(1, new BlockInfo()));
+            assertEquals(3000, reader.getSaveTime(1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void tornChunkHeaderIsDropped() throws IOException {
+        File file = mFolder.newFile("log.blk");
+        BlockLogWriter writer = BlockLogWriter.open(file);
+        writer.append(block(1), 1000);
+        writer.close();
+        long validLength = file.length();
+        //只写了块类型和长度的第一个字节
+        append(file, new byte[]{CHUNK_RECORD, (byte) 0x80});
+
+        BlockLogReader reader = BlockLogReader.open(file);
+        try {
+            assertEquals(1, reader.getRecordCount());
+            assertEquals(validLength, reader.getValidLength());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void malformedChunkHeaderEndsValidData() throws IOException {
+        File file = mFolder.newFile("log.blk");
+        BlockLogWriter writer = BlockLogWriter.open(file);
+        writer.append(block(1), 1000);
+        writer.close();
+        long validLength = file.length();
+        //长度的 varint 超过 10 个字节，后面再跟一些数据
+        byte[] garbage = new byte[16];
+        garbage[0] = CHUNK_RECORD;
+        for (int i = 1; i < 12; i++) {
+            garbage[i] = (byte) 0x80;
+        }
+        append(file, garbage);
+
+        BlockLogReader reader = BlockLogReader.open(file);
+        try {
+            assertEquals(1, reader.getRecordCount());
+            assertEquals(validLength, reader.getValidLength());
+        } finally {
+            reader.close();
+        }
+
+        //再打开写入时和撕裂的尾部一样截掉
+        writer = BlockLogWriter.open(file);
+        writer.append(block(2), 2000);
+        writer.close();
+        reader = BlockLogReader.open(file);
+        try {
+            assertEquals(2, reader.getRecordCount());
+            assertBlock(2, reader.read(1, new BlockInfo()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void unknownChunkTypeIsSkipped() throws IOException {
+        File file = mFolder.newFile("log.blk");
+        BlockLogWriter writer = BlockLogWriter.open(file);
+        writer.append(block(1), 1000);
+        writer.close();
+        append(file, new byte[]{42, 3, 'a', 'b', 'c'});
+        writer = BlockLogWriter.open(file);
+        writer.append(block(2), 2000);
+        writer.close();
+
+        BlockLogReader reader = BlockLogReader.open(file);
+        try {
+            assertEquals(2, reader.getRecordCount());
+            assertEquals(file.length(), reader.getValidLength());
+            assertBlock(1, reader.read(0, new BlockInfo()));
+            assertBlock(2, reader.read(1, new BlockInfo()));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void unknownFieldsAreSkipped() throws IOException {
+        File file = mFolder.newFile("log.blk");
+        BlockLogWriter writer = BlockLogWriter.open(file);
+        writer.append(block(1), 1000);
+        writer.close();
+
+        //新版本加的三种字段，后面跟一个已知字段
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        writeVarint(record, 40 << 2 | WIRE_VARINT);
+        writeVarint(record, zigzag(-12345));
+        writeVarint(record, 41 << 2 | WIRE_STRING);
+        writeVarint(record, 0);
+        writeVarint(record, 42 << 2 | WIRE_STACKS);
+        writeVarint(record, 1);
+        writeVarint(record, 2);
+        writeVarint(record, 0);
+        writeVarint(record, 0);
+        writeVarint(record, FIELD_TIME_COST << 2 | WIRE_VARINT);
+        writeVarint(record, zigzag(777));
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        chunk.write(CHUNK_RECORD);
+        writeVarint(chunk, record.size());
+        record.writeTo(chunk);
+        append(file, chunk.toByteArray());
+
+        BlockLogReader reader = BlockLogReader.open(file);
+        try {
+            assertEquals(2, reader.getRecordCount());
+            BlockInfo info = reader.read(1, new BlockInfo());
+            assertEquals(777, info.timeCost);
+            assertNull(info.cpuRateInfo);
+            assertTrue(info.threadStackEntries.isEmpty());
+            //没有保存时间字段
+            assertEquals(0, reader.getSaveTime(1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void nullFields() throws IOException {
+        File file = mFolder.newFile("log.blk");
+        BlockInfo empty = new BlockInfo();
+        empty.apiLevel = null;
+        empty.imei = null;
+        empty.versionName = null;
+        empty.threadStackEntries = null;
+        BlockLogWriter writer = BlockLogWriter.open(file);
+        writer.append(empty, 1000);
+        writer.close();
+
+        BlockLogReader reader = BlockLogReader.open(file);
+        try {
+            BlockInfo info = reader.read(0, new BlockInfo());
+            assertNull(info.qualifier);
+            assertNull(info.model);
+            assertNull(info.cpuRateInfo);
+            assertNull(info.looperTag);
+            assertNull(info.handlerInfo);
+            //没写的字段保持 BlockInfo 的默认值
+            assertEquals("", info.apiLevel);
+            assertEquals("", info.versionName);
+            assertEquals(-1, info.cpuContention);
+            assertTrue(info.threadStackEntries.isEmpty());
+            assertEquals(1000, reader.getSaveTime(0));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void deletedRecord() throws IOException {
+        File file = mFolder.newFile("log.blk");
+        BlockLogWriter writer = BlockLogWriter.open(file);
+        writer.append(block(1), 1000);
+        long offset = writer.append(block(2), 2000);
+        writer.delete(offset);
+        writer.close();
+
+        BlockLogReader reader = BlockLogReader.open(file);
+        try {
+            assertFalse(reader.isDeleted(0));
+            assertTrue(reader.isDeleted(1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notABlockLog() throws IOException {
+        File file = mFolder.newFile("log.blk");
+        append(file, "\r\n****\r\n".getBytes("UTF-8"));
+        assertFalse(BlockLogReader.isBlockLog(file));
+        BlockLogReader.open(file);
+    }
+
+    private static BlockInfo block(int n) {
+        BlockInfo info = new BlockInfo();
+        info.qualifier = "qualifier";
+        info.model = "model";
+        info.cpuCoreNum = 8;
+        info.timeCost = 1000 + n;
+        info.threadTimeCost = -n;
+        info.cpuBusy = n % 2 == 0;
+        info.cpuRateInfo = "cpu " + n;
+        info.looperTag = "looper " + n;
+        info.threadStackEntries.add("12:00:00" + BlockInfo.SEPARATOR + "at a.B.c(B.java:" + n + ")"
+                + BlockInfo.SEPARATOR + "at a.B.d(B.java:1)" + BlockInfo.SEPARATOR);
+        info.threadStackEntries.add("12:00:01" + BlockInfo.SEPARATOR + "at a.B.d(B.java:1)");
+        return info;
+    }
+
+    private static void assertBlock(int n, BlockInfo info) {
+        BlockInfo expected = block(n);
+        assertEquals(expected.qualifier, info.qualifier);
+        assertEquals(expected.model, info.model);
+        assertEquals(expected.cpuCoreNum, info.cpuCoreNum);
+        assertEquals(expected.timeCost, info.timeCost);
+        assertEquals(expected.threadTimeCost, info.threadTimeCost);
+        assertEquals(expected.cpuBusy, info.cpuBusy);
+        assertEquals(expected.cpuRateInfo, info.cpuRateInfo);
+        assertEquals(expected.looperTag, info.looperTag);
+        assertEquals(expected.threadStackEntries, info.threadStackEntries);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void append(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary.internal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProcFileTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void statWithSpacesAndParenthesesInComm() throws IOException {
+        //comm 是 "a) b (c"，只能按最后一个 ')' 定位
+        ProcFile file = open("1234 (a) b (c) S 1 1234 0 0 -1 4194560 100 0 0 0 250 75 0 0\n");
+
+        assertTrue(file.read());
+        assertEquals(1234, file.nextLong());
+        assertEquals("a) b (c", file.textBetween((byte) '(', (byte) ')'));
+        assertTrue(file.seekAfterLast((byte) ')'));
+        //state 之后第 11、12 个字段是 utime 和 stime
+        file.skipFields(11);
+        assertEquals(250, file.nextLong());
+        assertEquals(75, file.nextLong());
+    }
+
+    @Test
+    public void seekAfterLastMissingByte() throws IOException {
+        ProcFile file = open("no parentheses here\n");
+
+        assertTrue(file.read());
+        assertFalse(file.seekAfterLast((byte) ')'));
+        assertEquals(0, file.nextLong());
+        assertNull(file.textBetween((byte) '(', (byte) ')'));
+    }
+
+    @Test
+    public void skipFieldsStaysOnTheLine() throws IOException {
+        ProcFile file = open("cpu  10 20\t30 40\ncpu0 1 2 3 4\n");
+
+        assertTrue(file.read());
+        file.skipFields(3);
+        assertEquals(30, file.nextLong());
+        assertEquals(40, file.nextLong());
+        //行尾之后的字段不算
+        assertEquals(0, file.nextLong());
+        assertTrue(file.nextLine());
+        assertTrue(file.startsWith("cpu0".getBytes()));
+        file.skipFields(5);
+        assertEquals(0, file.nextLong());
+    }
+
+    @Test
+    public void nextDecimal() throws IOException {
+        ProcFile file = open("1.25 0.5 12 3.14159 -0.75 x 2/318 9\n");
+
+        assertTrue(file.read());
+        assertEquals(125, file.nextDecimal(2));
+        assertEquals(50, file.nextDecimal(2));
+        assertEquals(1200, file.nextDecimal(2));
+        //多余的小数位被截掉
+        assertEquals(314, file.nextDecimal(2));
+        assertEquals(-75, file.nextDecimal(2));
+        assertEquals(0, file.nextDecimal(2));
+        assertEquals(2, file.nextLong((byte) '/'));
+        assertEquals(318, file.nextLong());
+        assertEquals(9, file.nextLong());
+        assertFalse(file.nextLine());
+    }
+
+    @Test
+    public void seekLineAndUnits() throws IOException {
+        ProcFile file = open("MemTotal:  2048 kB\nMemFree:    512 kB\nCached: 64 kB\n");
+
+        assertTrue(file.read());
+        assertTrue(file.seekLine("MemFree:".getBytes()));
+        assertEquals(512, file.nextLong());
+        assertFalse(file.seekLine("SwapTotal:".getBytes()));
+        assertFalse(file.hasMore());
+    }
+
+    @Test
+    public void rereadSeesNewContent() throws IOException {
+        File path = write("1 2\n");
+        ProcFile file = new ProcFile(path.getPath());
+
+        assertTrue(file.read());
+        assertEquals(1, file.nextLong());
+        write(path, "7 8\n");
+        assertTrue(file.read());
+        assertEquals(7, file.nextLong());
+        file.close();
+    }
+
+    @Test
+    public void onlyBufferSizeIsRead() throws IOException {
+        ProcFile file = new ProcFile(write("123456789\n").getPath(), 4);
+
+        assertTrue(file.read());
+        assertEquals(1234, file.nextLong());
+        assertFalse(file.hasMore());
+    }
+
+    @Test
+    public void unavailableFile() {
+        ProcFile file = new ProcFile(new File(mFolder.getRoot(), "missing").getPath());
+
+        assertTrue(file.isAvailable());
+        assertFalse(file.read());
+        assertFalse(file.isAvailable());
+        //不再重试
+        assertFalse(file.read());
+        assertFalse(file.hasMore());
+        assertEquals(0, file.nextLong());
+    }
+
+    private ProcFile open(String content) throws IOException {
+        return new ProcFile(write(content).getPath());
+    }
+
+    private File write(String content) throws IOException {
+        File path = mFolder.newFile();
+        write(path, content);
+        return path;
+    }
+
+    private static void write(File path, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(path);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
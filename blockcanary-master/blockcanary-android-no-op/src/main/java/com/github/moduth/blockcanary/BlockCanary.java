@@ -16,8 +16,12 @@
 package com.github.moduth.blockcanary;
 
 import android.content.Context;
+import android.os.Looper;
 import android.util.Log;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * No-op implementation.
  */
@@ -53,6 +57,30 @@ public final class BlockCanary {
         Log.i(TAG, "stop");
     }
 
+    public void monitorLooper(Looper looper, String tag, int thresholdMillis) {
+        Log.i(TAG, "monitorLooper");
+    }
+
+    public void unmonitorLooper(Looper looper) {
+        Log.i(TAG, "unmonitorLooper");
+    }
+
+    public LatencyHistogram.Snapshot getLatencySnapshot() {
+        return new LatencyHistogram.Snapshot();
+    }
+
+    public LatencyHistogram.Snapshot getLatencySnapshot(Looper looper) {
+        return null;
+    }
+
+    public List<MessageSource> getMessageSources() {
+        return Collections.emptyList();
+    }
+
+    public List<MessageSource> getMessageSources(Looper looper) {
+        return null;
+    }
+
     public void upload() {
         Log.i(TAG, "upload");
     }
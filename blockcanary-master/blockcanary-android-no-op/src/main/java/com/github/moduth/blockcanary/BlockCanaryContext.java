@@ -74,6 +74,70 @@ public class BlockCanaryContext {
         return provideBlockThreshold();
     }
 
+    public int provideBurstSampleInterval() {
+        return 0;
+    }
+
+    public int provideBurstSampleCount() {
+        return 20;
+    }
+
+    public float provideSampleBackoffFactor() {
+        return 2f;
+    }
+
+    public int provideFreezeThreshold() {
+        return 0;
+    }
+
+    public boolean journalInFlightSamples() {
+        return false;
+    }
+
+    public int provideBaselineSampleInterval() {
+        return 0;
+    }
+
+    public float provideBaselineOverheadPercent() {
+        return 1f;
+    }
+
+    public boolean catchUpMissedSamples() {
+        return false;
+    }
+
+    public int provideThreadCpuSampleCount() {
+        return 0;
+    }
+
+    public int provideLockOwnerThreadCount() {
+        return 0;
+    }
+
+    public long provideLatencyPersistInterval() {
+        return 10 * 60 * 1000L;
+    }
+
+    public boolean sampleCpuCores() {
+        return false;
+    }
+
+    public boolean sampleMemory() {
+        return false;
+    }
+
+    public boolean sampleIo() {
+        return false;
+    }
+
+    public boolean sampleScheduling() {
+        return false;
+    }
+
+    public boolean samplePressure() {
+        return false;
+    }
+
     public String providePath() {
         return "/blockcanary/";
     }
@@ -113,4 +177,8 @@ public class BlockCanaryContext {
     public boolean stopWhenDebugging() {
         return true;
     }
+
+    public boolean armSamplersLazily() {
+        return false;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,16 @@
+package com.github.moduth.blockcanary;
+
+/**
+ * No-op implementation.
+ */
+public final class LatencyHistogram {
+
+    public static final class Snapshot {
+
+        public final long count = 0;
+        public final long p50 = 0;
+        public final long p90 = 0;
+        public final long p99 = 0;
+        public final long max = 0;
+    }
+}
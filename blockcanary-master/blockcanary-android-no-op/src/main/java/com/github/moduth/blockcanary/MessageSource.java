@@ -0,0 +1,34 @@
+package com.github.moduth.blockcanary;
+
+/**
+ * No-op implementation.
+ */
+public final class MessageSource {
+
+    private MessageSource() {
+    }
+
+    public String getHandlerClass() {
+        return null;
+    }
+
+    public String getCallbackClass() {
+        return null;
+    }
+
+    public int getWhat() {
+        return 0;
+    }
+
+    public long getCount() {
+        return 0;
+    }
+
+    public long getTotalMillis() {
+        return 0;
+    }
+
+    public long getMaxMillis() {
+        return 0;
+    }
+}
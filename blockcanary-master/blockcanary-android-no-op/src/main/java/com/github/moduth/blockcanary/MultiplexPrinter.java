@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016 MarkZhai (http://zhaiyifan.cn).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.moduth.blockcanary;
+
+import android.os.Looper;
+import android.util.Printer;
+
+/**
+ * No-op version of the multiplexing printer. {@link #add(Looper, Printer)} and
+ * {@link #remove(Looper, Printer)} do nothing, so printers installed by the app or other
+ * libraries are left untouched.
+ */
+public final class MultiplexPrinter implements Printer {
+
+    private MultiplexPrinter() {
+    }
+
+    public static void add(Looper looper, Printer printer) {
+    }
+
+    public static void remove(Looper looper, Printer printer) {
+    }
+
+    @Override
+    public void println(String x) {
+    }
+}
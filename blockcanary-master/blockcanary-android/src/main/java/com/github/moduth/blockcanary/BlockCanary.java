@@ -23,6 +23,9 @@ import android.preference.PreferenceManager;
 
 import com.github.moduth.blockcanary.ui.DisplayActivity;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -38,6 +41,8 @@ public final class BlockCanary {
     private BlockCanaryInternals mBlockCanaryCore;
     //检测是否启动
     private boolean mMonitorStarted = false;
+    //主线程以外被监控的 Looper 和它的 Printer
+    private final Map<Looper, LooperMonitor> mLooperMonitors = new HashMap<>();
 
     private BlockCanary() {
         //设置Context
@@ -92,24 +97,115 @@ public final class BlockCanary {
      * Start monitoring.
      * 开始监测
      */
-    public void start() {
+    public synchronized void start() {
         if (!mMonitorStarted) {
             mMonitorStarted = true;
-            //设置自定义的 Printer
-            Looper.getMainLooper().setMessageLogging(mBlockCanaryCore.monitor);
+            //设置自定义的 Printer，和之前装的 Printer 共存
+            MultiplexPrinter.add(Looper.getMainLooper(), mBlockCanaryCore.monitor);
+            mBlockCanaryCore.monitor.startWatchdog();
+            mBlockCanaryCore.startBaselineSampling();
+            mBlockCanaryCore.startLatencyPersistence();
+            for (Map.Entry<Looper, LooperMonitor> entry : mLooperMonitors.entrySet()) {
+                MultiplexPrinter.add(entry.getKey(), entry.getValue());
+                entry.getValue().startWatchdog();
+            }
         }
     }
 
     /**
      * Stop monitoring.
      */
-    public void stop() {
+    public synchronized void stop() {
         if (mMonitorStarted) {
             mMonitorStarted = false;
-            Looper.getMainLooper().setMessageLogging(null);
-            mBlockCanaryCore.stackSampler.stop();
-            mBlockCanaryCore.cpuSampler.stop();
+            MultiplexPrinter.remove(Looper.getMainLooper(), mBlockCanaryCore.monitor);
+            mBlockCanaryCore.monitor.stopWatchdog();
+            mBlockCanaryCore.stopBaselineSampling();
+            mBlockCanaryCore.stopLatencyPersistence();
+            mBlockCanaryCore.monitor.stopDump();
+            for (Map.Entry<Looper, LooperMonitor> entry : mLooperMonitors.entrySet()) {
+                MultiplexPrinter.remove(entry.getKey(), entry.getValue());
+                entry.getValue().stopWatchdog();
+                entry.getValue().stopDump();
+            }
+        }
+    }
+
+    /**
+     * Also monitor a looper other than the main one, like the one of a
+     * {@link android.os.HandlerThread}. It gets its own block threshold and stack sampler, and
+     * its blocks are recorded with the given tag. All loopers share one sampling scheduler.
+     * Takes effect now if monitoring has started, otherwise on {@link #start()}.
+     *
+     * @param looper          looper to monitor
+     * @param tag             tag of the looper in block records, like "render"
+     * @param thresholdMillis block threshold of this looper
+     */
+    public synchronized void monitorLooper(Looper looper, String tag, int thresholdMillis) {
+        if (looper == Looper.getMainLooper() || mLooperMonitors.containsKey(looper)) {
+            return;
+        }
+        LooperMonitor monitor = mBlockCanaryCore.addLooperMonitor(looper, tag, thresholdMillis);
+        mLooperMonitors.put(looper, monitor);
+        if (mMonitorStarted) {
+            MultiplexPrinter.add(looper, monitor);
+            monitor.startWatchdog();
+        }
+    }
+
+    /**
+     * Stop monitoring a looper added by {@link #monitorLooper(Looper, String, int)}.
+     */
+    public synchronized void unmonitorLooper(Looper looper) {
+        LooperMonitor monitor = mLooperMonitors.remove(looper);
+        if (monitor == null) {
+            return;
         }
+        if (mMonitorStarted) {
+            MultiplexPrinter.remove(looper, monitor);
+            monitor.stopWatchdog();
+        }
+        mBlockCanaryCore.removeLooperMonitor(looper);
+    }
+
+    /**
+     * Dispatch time percentiles of every main looper message since the process started.
+     *
+     * @return percentiles of the main looper
+     */
+    public LatencyHistogram.Snapshot getLatencySnapshot() {
+        return getLatencySnapshot(Looper.getMainLooper());
+    }
+
+    /**
+     * Dispatch time percentiles of the main looper or of a looper added by
+     * {@link #monitorLooper(Looper, String, int)}.
+     *
+     * @return percentiles, or null if the looper is not monitored
+     */
+    public LatencyHistogram.Snapshot getLatencySnapshot(Looper looper) {
+        LatencyHistogram histogram = mBlockCanaryCore.getLatencyHistogram(looper);
+        return histogram == null ? null : histogram.snapshot();
+    }
+
+    /**
+     * Where the main looper messages came from, with the dispatch count, total and max time of
+     * each source, so blocks can be grouped by message source.
+     *
+     * @return message sources, the one with the most total time first
+     */
+    public List<MessageSource> getMessageSources() {
+        return getMessageSources(Looper.getMainLooper());
+    }
+
+    /**
+     * Message sources of the main looper or of a looper added by
+     * {@link #monitorLooper(Looper, String, int)}.
+     *
+     * @return message sources, or null if the looper is not monitored
+     */
+    public List<MessageSource> getMessageSources(Looper looper) {
+        return mBlockCanaryCore.getMessageSources(looper);
     }
 
     /**
@@ -41,8 +41,15 @@ final class Uploader {
             Log.e(TAG, "zip: ", e);
         }
         File zippedFile = LogWriter.generateTempZip("BlockCanary-" + timeString);
-        BlockCanaryInternals.getContext().zip(BlockCanaryInternals.getLogFiles(), zippedFile);
-        LogWriter.deleteAll();
+        //段是二进制的，导出成文本日志再打包
+        File textDirectory = new File(zippedFile.getParentFile(), "BlockCanary-" + timeString);
+        File[] textLogs = LogWriter.exportText(textDirectory);
+        BlockCanaryInternals.getContext().zip(textLogs, zippedFile);
+        for (File textLog : textLogs) {
+            textLog.delete();
+        }
+        textDirectory.delete();
+        LogWriter.deleteAll(null);
         return zippedFile;
     }
 
@@ -44,10 +44,13 @@ import android.widget.TextView;
 
 import com.github.moduth.blockcanary.BlockCanaryContext;
 import com.github.moduth.blockcanary.BlockCanaryInternals;
+import com.github.moduth.blockcanary.BlockStore;
 import com.github.moduth.blockcanary.LogWriter;
 import com.github.moduth.blockcanary.R;
+import com.github.moduth.blockcanary.internal.BlockLogReader;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -70,6 +73,8 @@ public class DisplayActivity extends Activity {
 
     private static final String TAG = "DisplayActivity";
     private static final String SHOW_BLOCK_EXTRA = "show_latest";
+    //分享用的文本日志放在块目录的子目录里，打开 BlockStore 时不会被当作旧日志导入
+    private static final String SHARE_DIRECTORY = "share";
     public static final String SHOW_BLOCK_EXTRA_KEY = "BlockStartTime";
 
     // empty until it's been first loaded.
@@ -201,13 +206,28 @@ public class DisplayActivity extends Activity {
     }
 
     private void shareHeapDump(BlockInfoEx blockInfo) {
-        File heapDumpFile = blockInfo.logFile;
+        //段是二进制的，还存着别的卡顿，把这一条单独写成文本日志再分享
+        File shareDirectory = new File(blockInfo.logFile.getParentFile(), SHARE_DIRECTORY);
+        File[] shared = shareDirectory.listFiles();
+        if (shared != null) {
+            //上一次分享的文件
+            for (File file : shared) {
+                file.delete();
+            }
+        } else if (!shareDirectory.mkdirs()) {
+            Log.e(TAG, "Could not create " + shareDirectory);
+            return;
+        }
+        File heapDumpFile = new File(shareDirectory, "block-" + blockInfo.blockId + ".log");
+        if (!LogWriter.writeText(heapDumpFile, blockInfo.toString(), blockInfo.saveTime)) {
+            return;
+        }
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
             heapDumpFile.setReadable(true, false);
         }
         Intent intent = new Intent(Intent.ACTION_SEND);
-        intent.setType("application/octet-stream");
+        intent.setType("text/plain");
         intent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(heapDumpFile));
         startActivity(Intent.createChooser(intent, getString(R.string.block_canary_share_with)));
     }
@@ -259,9 +279,10 @@ public class DisplayActivity extends Activity {
                     DialogInterface.OnClickListener okListener = new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialogInterface, int i) {
-                            LogWriter.deleteAll();
                             mBlockInfoEntries = Collections.emptyList();
                             updateUi();
+                            //删完以后重新加载一次
+                            LogWriter.deleteAll(LoadBlocks.prepare(DisplayActivity.this));
                         }
                     };
                     new AlertDialog.Builder(DisplayActivity.this)
@@ -306,7 +327,7 @@ public class DisplayActivity extends Activity {
             @Override
             public void onClick(View v) {
                 if (blockInfo != null) {
-                    blockInfo.logFile.delete();
+                    LogWriter.delete(blockInfo.blockId);
                     mBlockStartTime = null;
                     mBlockInfoEntries.remove(blockInfo);
                     updateUi();
@@ -368,7 +389,7 @@ public class DisplayActivity extends Activity {
                     getString(R.string.block_canary_class_has_blocked, blockInfo.timeCost);
             titleView.setText(title);
             String time = DateUtils.formatDateTime(DisplayActivity.this,
-                    blockInfo.logFile.lastModified(), FORMAT_SHOW_TIME | FORMAT_SHOW_DATE);
+                    blockInfo.saveTime, FORMAT_SHOW_TIME | FORMAT_SHOW_DATE);
             timeView.setText(time);
             return convertView;
         }
@@ -387,9 +408,16 @@ public class DisplayActivity extends Activity {
         }
 
         static void load(DisplayActivity activity) {
+            backgroundExecutor.execute(prepare(activity));
+        }
+
+        /**
+         * Create a load to be run later on any background thread, call on the main thread.
+         */
+        static LoadBlocks prepare(DisplayActivity activity) {
             LoadBlocks loadBlocks = new LoadBlocks(activity);
             inFlight.add(loadBlocks);
-            backgroundExecutor.execute(loadBlocks);
+            return loadBlocks;
         }
 
         static void forgetActivity() {
@@ -404,43 +432,34 @@ public class DisplayActivity extends Activity {
             final List<BlockInfoEx> blockInfoList = new ArrayList<>();
             File[] files = BlockCanaryInternals.getLogFiles();
             if (files != null) {
+                //每个段顺序读一遍，被删除的记录跳过
                 for (File blockFile : files) {
+                    BlockLogReader reader = null;
                     try {
-                        BlockInfoEx blockInfo = BlockInfoEx.newInstance(blockFile);
-                        if (!BlockCanaryUtils.isBlockInfoValid(blockInfo)) {
-                            throw new BlockInfoCorruptException(blockInfo);
-                        }
-
-                        boolean needAddToList = true;
-
-                        if (BlockCanaryUtils.isInWhiteList(blockInfo)) {
-                            if (BlockCanaryContext.get().deleteFilesInWhiteList()) {
-                                blockFile.delete();
-                                blockFile = null;
+                        reader = BlockLogReader.open(blockFile);
+                        for (int i = 0; i < reader.getRecordCount(); i++) {
+                            if (!reader.isDeleted(i)) {
+                                loadBlock(blockFile, reader, i, blockInfoList);
                             }
-                            needAddToList = false;
                         }
-
-                        blockInfo.concernStackString = BlockCanaryUtils.concernStackString(blockInfo);
-                        if (BlockCanaryContext.get().filterNonConcernStack() &&
-                                TextUtils.isEmpty(blockInfo.concernStackString)) {
-                            needAddToList = false;
-                        }
-
-                        if (needAddToList && blockFile != null) {
-                            blockInfoList.add(blockInfo);
+                    } catch (IOException e) {
+                        //段归 BlockStore 管，这里只跳过，不能删
+                        Log.e(TAG, "Could not read block log file, skipped :" + blockFile, e);
+                    } finally {
+                        try {
+                            if (reader != null) {
+                                reader.close();
+                            }
+                        } catch (IOException e) {
+                            Log.e(TAG, "close: ", e);
                         }
-                    } catch (Exception e) {
-                        // Probably blockFile corrupts or format changes, just delete it.
-                        blockFile.delete();
-                        Log.e(TAG, "Could not read block log file, deleted :" + blockFile, e);
                     }
                 }
+                //段的序号和段内的偏移都是按写入顺序递增的
                 Collections.sort(blockInfoList, new Comparator<BlockInfoEx>() {
                     @Override
                     public int compare(BlockInfoEx lhs, BlockInfoEx rhs) {
-                        return Long.valueOf(rhs.logFile.lastModified())
-                                .compareTo(lhs.logFile.lastModified());
+                        return Long.valueOf(rhs.blockId).compareTo(lhs.blockId);
                     }
                 });
             }
@@ -456,5 +475,39 @@ public class DisplayActivity extends Activity {
                 }
             });
         }
+
+        private static void loadBlock(File blockFile, BlockLogReader reader, int index,
+                                      List<BlockInfoEx> blockInfoList) {
+            long blockId = BlockStore.blockId(blockFile, reader.getRecordOffset(index));
+            try {
+                BlockInfoEx blockInfo = BlockInfoEx.newInstance(blockFile, reader, index);
+                if (!BlockCanaryUtils.isBlockInfoValid(blockInfo)) {
+                    throw new BlockInfoCorruptException(blockInfo);
+                }
+
+                boolean needAddToList = true;
+
+                if (BlockCanaryUtils.isInWhiteList(blockInfo)) {
+                    if (BlockCanaryContext.get().deleteFilesInWhiteList()) {
+                        LogWriter.delete(blockId);
+                    }
+                    needAddToList = false;
+                }
+
+                blockInfo.concernStackString = BlockCanaryUtils.concernStackString(blockInfo);
+                if (BlockCanaryContext.get().filterNonConcernStack() &&
+                        TextUtils.isEmpty(blockInfo.concernStackString)) {
+                    needAddToList = false;
+                }
+
+                if (needAddToList) {
+                    blockInfoList.add(blockInfo);
+                }
+            } catch (Exception e) {
+                // Probably the record corrupts or format changes, just delete it.
+                LogWriter.delete(blockId);
+                Log.e(TAG, "Could not read block " + index + " of " + blockFile + ", deleted", e);
+            }
+        }
     }
 }
\ No newline at end of file